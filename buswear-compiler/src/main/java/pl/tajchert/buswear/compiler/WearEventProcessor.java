@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Michal Tajchert (http://tajchert.pl), Polidea
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.tajchert.buswear.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an EventCodec for every class annotated with WearEvent, and one EventCodecIndex registering all of them,
+ * which BusWear loads when the first EventBus is created. Generated code calls CREATOR (or the Parcel constructor)
+ * directly, so decoding needs no reflection and the event classes can be shrunk safely. Type ids are computed here
+ * from the class names in source, both apps get the same ids even if they are obfuscated differently.
+ * <p/>
+ * Index is generated as pl.tajchert.buswear.generated.BusWearEventCodecs, library modules should set a different
+ * name with the buswear.codecIndex option and install it with EventCodecs.install().
+ */
+@SupportedAnnotationTypes(WearEventProcessor.WEAR_EVENT)
+@SupportedOptions(WearEventProcessor.OPTION_CODEC_INDEX)
+public class WearEventProcessor extends AbstractProcessor {
+
+    static final String WEAR_EVENT = "pl.tajchert.buswear.WearEvent";
+    static final String OPTION_CODEC_INDEX = "buswear.codecIndex";
+
+    private static final String DEFAULT_CODEC_INDEX = "pl.tajchert.buswear.generated.BusWearEventCodecs";
+    private static final String PARCEL = "android.os.Parcel";
+    private static final String PARCELABLE = "android.os.Parcelable";
+    private static final String CODEC_SUFFIX = "_WearCodec";
+
+    private final List<String> generatedCodecs = new ArrayList<String>();
+    private final List<String> eventClasses = new ArrayList<String>();
+    private final List<Integer> typeIds = new ArrayList<Integer>();
+    private boolean indexWritten;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement wearEvent = processingEnv.getElementUtils().getTypeElement(WEAR_EVENT);
+        if (wearEvent == null) {
+            return false;
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(wearEvent)) {
+            if (isValidEvent(element)) {
+                writeCodec((TypeElement) element);
+            }
+        }
+
+        //Generated sources are never annotated, so every event is known after the round that found the first one
+        if (!indexWritten && !eventClasses.isEmpty()) {
+            writeIndex();
+            indexWritten = true;
+        }
+        return true;
+    }
+
+    private boolean isValidEvent(Element element) {
+        if (element.getKind() != ElementKind.CLASS) {
+            error(element, "@WearEvent can only be used on classes");
+            return false;
+        }
+        TypeElement type = (TypeElement) element;
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(element, "@WearEvent class cannot be abstract");
+            return false;
+        }
+        for (Element enclosing = type; enclosing.getKind() != ElementKind.PACKAGE; enclosing = enclosing.getEnclosingElement()) {
+            if (!enclosing.getModifiers().contains(Modifier.PUBLIC)) {
+                error(element, "@WearEvent class and classes enclosing it need to be public");
+                return false;
+            }
+            if (enclosing.getEnclosingElement().getKind() != ElementKind.PACKAGE && !enclosing.getModifiers().contains(Modifier.STATIC)) {
+                error(element, "@WearEvent nested class needs to be static");
+                return false;
+            }
+        }
+        TypeMirror parcelable = processingEnv.getElementUtils().getTypeElement(PARCELABLE).asType();
+        if (!processingEnv.getTypeUtils().isAssignable(type.asType(), parcelable)) {
+            error(element, "@WearEvent class needs to implement Parcelable");
+            return false;
+        }
+        if (findDecodeExpression(type) == null) {
+            error(element, "@WearEvent class needs a public static CREATOR field or a non-private constructor taking Parcel");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Java expression recreating the event from variable named parcel, or null if there is no way to do it
+     */
+    private String findDecodeExpression(TypeElement type) {
+        String typeName = type.getQualifiedName().toString();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (field.getSimpleName().contentEquals("CREATOR") && field.getModifiers().contains(Modifier.PUBLIC) && field.getModifiers().contains(Modifier.STATIC)) {
+                //Cast in case CREATOR is declared with a raw type
+                return "(" + typeName + ") " + typeName + ".CREATOR.createFromParcel(parcel)";
+            }
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (!constructor.getModifiers().contains(Modifier.PRIVATE) && constructor.getParameters().size() == 1
+                    && constructor.getParameters().get(0).asType().toString().equals(PARCEL)) {
+                return "new " + typeName + "(parcel)";
+            }
+        }
+        return null;
+    }
+
+    private void writeCodec(TypeElement type) {
+        String packageName = getPackageName(type);
+        String codecName = getFlatName(type) + CODEC_SUFFIX;
+        String typeName = type.getQualifiedName().toString();
+        String codecClass = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import android.os.Parcel;\n")
+                .append("import android.support.annotation.NonNull;\n\n")
+                .append("import pl.tajchert.buswear.wear.EventCodec;\n")
+                .append("import pl.tajchert.buswear.wear.WearBusTools;\n\n")
+                .append("/**\n * Generated by buswear-compiler, do not edit.\n */\n")
+                .append("public final class ").append(codecName).append(" implements EventCodec<").append(typeName).append("> {\n\n")
+                .append("    @NonNull\n")
+                .append("    @Override\n")
+                .append("    public byte[] encode(@NonNull ").append(typeName).append(" event) {\n")
+                .append("        return WearBusTools.parcelToByte(event);\n")
+                .append("    }\n\n")
+                .append("    @NonNull\n")
+                .append("    @Override\n")
+                .append("    public ").append(typeName).append(" decode(@NonNull byte[] data) {\n")
+                .append("        Parcel parcel = WearBusTools.byteToParcel(data);\n")
+                .append("        try {\n")
+                .append("            return ").append(findDecodeExpression(type)).append(";\n")
+                .append("        } finally {\n")
+                .append("            parcel.recycle();\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+
+        if (writeSource(codecClass, source.toString(), type)) {
+            generatedCodecs.add(codecClass);
+            eventClasses.add(typeName);
+            typeIds.add(getTypeId(processingEnv.getElementUtils().getBinaryName(type).toString()));
+        }
+    }
+
+    private void writeIndex() {
+        String indexClass = processingEnv.getOptions().get(OPTION_CODEC_INDEX);
+        if (indexClass == null || indexClass.isEmpty()) {
+            indexClass = DEFAULT_CODEC_INDEX;
+        }
+        int lastDot = indexClass.lastIndexOf('.');
+        String packageName = lastDot < 0 ? "" : indexClass.substring(0, lastDot);
+        String indexName = indexClass.substring(lastDot + 1);
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import pl.tajchert.buswear.wear.EventCodecIndex;\n")
+                .append("import pl.tajchert.buswear.wear.EventCodecs;\n\n")
+                .append("/**\n * Generated by buswear-compiler, do not edit.\n */\n")
+                .append("public final class ").append(indexName).append(" implements EventCodecIndex {\n\n")
+                .append("    @Override\n")
+                .append("    public void registerCodecs() {\n");
+        for (int i = 0; i < eventClasses.size(); i++) {
+            source.append("        EventCodecs.registerParcelCodec(").append(eventClasses.get(i)).append(".class, new ")
+                    .append(generatedCodecs.get(i)).append("(), 0x").append(Integer.toHexString(typeIds.get(i))).append(");\n");
+        }
+        source.append("    }\n")
+                .append("}\n");
+
+        writeSource(indexClass, source.toString(), null);
+    }
+
+    private boolean writeSource(String className, String source, Element originatingElement) {
+        Element[] originatingElements = originatingElement == null ? new Element[0] : new Element[]{originatingElement};
+        Writer writer = null;
+        try {
+            writer = processingEnv.getFiler().createSourceFile(className, originatingElements).openWriter();
+            writer.write(source);
+            return true;
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + className + ": " + e.getMessage(), originatingElement);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as WearTypeRegistry.getTypeId(), 32 bit FNV-1a hash of the binary class name
+     */
+    static int getTypeId(String name) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private String getPackageName(TypeElement type) {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        return packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+    }
+
+    /**
+     * @return name of the class without package, with nested class names joined by underscore
+     */
+    private String getFlatName(TypeElement type) {
+        List<String> names = new ArrayList<String>();
+        for (Element element = type; element.getKind() != ElementKind.PACKAGE; element = element.getEnclosingElement()) {
+            names.add(element.getSimpleName().toString());
+        }
+        Collections.reverse(names);
+        StringBuilder flatName = new StringBuilder();
+        for (String name : names) {
+            if (flatName.length() > 0) {
+                flatName.append('_');
+            }
+            flatName.append(name);
+        }
+        return flatName.toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
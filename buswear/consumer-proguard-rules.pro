@@ -0,0 +1,5 @@
+# Codec index generated by buswear-compiler is loaded by name when the first EventBus is created
+-keep class pl.tajchert.buswear.generated.BusWearEventCodecs { <init>(); }
+
+# Interest advertisements and events without a generated codec identify classes by name, both apps have to agree on it
+-keepnames @pl.tajchert.buswear.WearEvent class *
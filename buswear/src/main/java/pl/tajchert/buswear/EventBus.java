@@ -16,21 +16,48 @@
 package pl.tajchert.buswear;
 
 import android.content.Context;
-import android.os.Parcel;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.google.android.gms.wearable.MessageEvent;
 
+import org.greenrobot.eventbus.NoSubscriberEvent;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
-import java.lang.reflect.Constructor;
-
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pl.tajchert.buswear.wear.BatchingTransport;
+import pl.tajchert.buswear.wear.DeliveryFuture;
+import pl.tajchert.buswear.wear.DeliveryTracker;
+import pl.tajchert.buswear.wear.DuplicateFilter;
+import pl.tajchert.buswear.wear.EventCodec;
+import pl.tajchert.buswear.wear.EventCodecs;
+import pl.tajchert.buswear.wear.GooglePlayServicesTransport;
+import pl.tajchert.buswear.wear.LoopbackTransport;
+import pl.tajchert.buswear.wear.MessageHeader;
+import pl.tajchert.buswear.wear.OutboundDispatcher;
+import pl.tajchert.buswear.wear.ReceiveConflation;
+import pl.tajchert.buswear.wear.ParcelableDecoders;
+import pl.tajchert.buswear.wear.RemoteInterest;
+import pl.tajchert.buswear.wear.RemoteTransport;
+import pl.tajchert.buswear.wear.RequestFuture;
+import pl.tajchert.buswear.wear.RequestTracker;
 import pl.tajchert.buswear.wear.SendByteArrayToNode;
 import pl.tajchert.buswear.wear.SendCommandToNode;
+import pl.tajchert.buswear.wear.StickyConflation;
+import pl.tajchert.buswear.wear.TypeIdCheckingTransport;
 import pl.tajchert.buswear.wear.WearBusTools;
+import pl.tajchert.buswear.wear.WearTypeRegistry;
 
 /**
  * EventBus is a central publish/subscribe event system for Android. Events are posted ({@link #post(Object)}) to the
@@ -46,6 +73,18 @@ public class EventBus {
 
     private static EventBus defaultInstance;
 
+    /**
+     * Replaces the default EventBus, for example with one using {@link BatchingTransport}. This must be set before
+     * any EventBus methods, usually in the application class.
+     *
+     * @param eventBus
+     */
+    public static void setDefault(@NonNull EventBus eventBus) {
+        synchronized (EventBus.class) {
+            defaultInstance = eventBus;
+        }
+    }
+
     public static EventBus getDefault(@NonNull Context context) {
         if (defaultInstance == null) {
             synchronized (EventBus.class) {
@@ -57,16 +96,81 @@ public class EventBus {
         return defaultInstance;
     }
 
-    private final Context context;
     private final org.greenrobot.eventbus.EventBus eventBus;
+    private final RemoteTransport transport;
+    private final AtomicLong skippedDecodeCount = new AtomicLong();
+    private final AtomicLong skippedSendCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong malformedBatchCount = new AtomicLong();
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+    private final RemoteInterest remoteInterest = new RemoteInterest();
+    private final StickyConflation stickyConflation;
+    private final DeliveryTracker deliveryTracker = new DeliveryTracker();
+    private final RequestTracker requestTracker = new RequestTracker();
+    private final ReceiveConflation receiveConflation = new ReceiveConflation(new ReceiveConflation.Delivery() {
+        @Override
+        public void deliver(@NonNull MessageHeader header) {
+            postDecoded(header);
+        }
+    });
+
+    //Number of registered subscribers handling each event type, guarded by itself
+    private final Map<Class<?>, Integer> subscribedTypes = new HashMap<Class<?>, Integer>();
+    private int interestVersion;
 
     public EventBus(@NonNull Context context) {
         this(context, org.greenrobot.eventbus.EventBus.getDefault());
     }
 
     public EventBus(@NonNull Context context, @NonNull org.greenrobot.eventbus.EventBus eventBus) {
-        this.context = context.getApplicationContext();
+        this(eventBus, new GooglePlayServicesTransport(context));
+    }
+
+    /**
+     * Creates EventBus sending remote events over the given transport, for example {@link LoopbackTransport} to
+     * connect two EventBus instances in the same process.
+     *
+     * @param eventBus  local bus
+     * @param transport used for remote events
+     */
+    public EventBus(@NonNull org.greenrobot.eventbus.EventBus eventBus, @NonNull RemoteTransport transport) {
+        EventCodecs.loadGeneratedIndex();
         this.eventBus = eventBus;
+        //Messages carry class names until remote buses advertised the type ids they resolve
+        this.transport = new TypeIdCheckingTransport(transport, remoteInterest);
+        this.stickyConflation = new StickyConflation(this.transport);
+        this.transport.setOnMessageReceivedListener(new RemoteTransport.OnMessageReceivedListener() {
+            @Override
+            public void onMessageReceived(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data) {
+                syncEvent(sourceNodeId, data);
+            }
+        });
+        this.transport.setOnNodesChangedListener(new RemoteTransport.OnNodesChangedListener() {
+            @Override
+            public void onNodeConnected(@NonNull String nodeId) {
+                //Its bus may have been restarted meanwhile, ask for its types again
+                remoteInterest.onNodeConnected(nodeId);
+                advertiseInterest(RemoteInterest.FULL_REQUEST, null);
+            }
+
+            @Override
+            public void onNodeDisconnected(@NonNull String nodeId) {
+                //Requests waiting for a node that went away fail right away instead of timing out
+                requestTracker.onNodeDisconnected(nodeId);
+                remoteInterest.onNodeDisconnected(nodeId);
+            }
+        });
+        advertiseInterest(RemoteInterest.FULL_REQUEST, null);
+    }
+
+    /**
+     * Stops receiving remote events and releases the transport, so the bus can be garbage collected. Call it once an
+     * EventBus you created is no longer used, it should not be used for remote events afterwards.
+     */
+    public void release() {
+        transport.setOnMessageReceivedListener(null);
+        transport.setOnNodesChangedListener(null);
+        transport.release();
     }
 
     /******************** Greenrobot Proxy Methods ************************/
@@ -81,11 +185,46 @@ public class EventBus {
      */
     public void register(Object subscriber) {
         eventBus.register(subscriber);
+        Set<Class<?>> types = findSubscribedTypes(subscriber.getClass());
+        List<Class<?>> added = new ArrayList<Class<?>>();
+        synchronized (subscribedTypes) {
+            for (Class<?> type : types) {
+                WearTypeRegistry.learn(type);
+                Integer count = subscribedTypes.get(type);
+                subscribedTypes.put(type, count == null ? 1 : count + 1);
+                if (count == null) {
+                    added.add(type);
+                }
+            }
+            if (!added.isEmpty()) {
+                advertiseInterest(RemoteInterest.ADDED, added);
+            }
+        }
     }
 
     /** Unregisters the given subscriber from all event classes. */
     public void unregister(Object subscriber) {
+        boolean wasRegistered = eventBus.isRegistered(subscriber);
         eventBus.unregister(subscriber);
+        if (!wasRegistered) {
+            return;
+        }
+        Set<Class<?>> types = findSubscribedTypes(subscriber.getClass());
+        List<Class<?>> removed = new ArrayList<Class<?>>();
+        synchronized (subscribedTypes) {
+            for (Class<?> type : types) {
+                Integer count = subscribedTypes.get(type);
+                if (count == null || count <= 1) {
+                    subscribedTypes.remove(type);
+                    removed.add(type);
+                } else {
+                    subscribedTypes.put(type, count - 1);
+                }
+            }
+            if (!removed.isEmpty()) {
+                advertiseInterest(RemoteInterest.REMOVED, removed);
+            }
+        }
     }
 
     public boolean isRegistered(Object subscriber) {
@@ -113,6 +252,125 @@ public class EventBus {
         return eventBus.hasSubscriberForEvent(eventClass);
     }
 
+    /**
+     * Finds event types the subscriber handles. They are made resolvable in {@link WearTypeRegistry}, so they can be
+     * received from remote buses sending them with their id, and advertised to remote buses.
+     */
+    @NonNull
+    private static Set<Class<?>> findSubscribedTypes(@NonNull Class<?> subscriberClass) {
+        Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+        for (Class<?> clazz = subscriberClass; clazz != null && !isSystemClass(clazz); clazz = clazz.getSuperclass()) {
+            Method[] methods;
+            try {
+                methods = clazz.getDeclaredMethods();
+            } catch (Throwable e) {
+                //Same as greenrobot, some classes cannot be inspected on some devices
+                break;
+            }
+            for (Method method : methods) {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                if (parameterTypes.length == 1 && method.getAnnotation(Subscribe.class) != null) {
+                    types.add(parameterTypes[0]);
+                }
+            }
+        }
+        return types;
+    }
+
+    private static boolean isSystemClass(@NonNull Class<?> clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("android.");
+    }
+
+    /**
+     * @return number of received non-sticky events dropped without decoding, as nothing on this side subscribes to them
+     */
+    public long getSkippedDecodeCount() {
+        return skippedDecodeCount.get();
+    }
+
+    /**
+     * @return number of non-sticky events not sent remote, as no remote bus advertised a subscriber for them
+     */
+    public long getSkippedSendCount() {
+        return skippedSendCount.get();
+    }
+
+    /**
+     * @return number of received messages dropped as they arrived before
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * @return number of received messages too old to be checked for duplicates, they were posted without the check
+     */
+    public long getLateMessageCount() {
+        return duplicateFilter.getTooOldCount();
+    }
+
+    /**
+     * @return number of received batches dropped as a whole because they could not be unpacked
+     */
+    public long getMalformedBatchCount() {
+        return malformedBatchCount.get();
+    }
+
+    /**
+     * Received events of the class, and sticky events of the class, are posted from the main thread and only the
+     * newest of them is posted if several arrive before the main thread gets to them. Use it for state events where
+     * stale values are of no use, like a backlog received after Bluetooth reconnects. Events of the class are no
+     * longer posted in order with events of other classes then.
+     *
+     * @param eventType  exact event class
+     * @param conflation true to conflate received events of the class
+     */
+    public void setReceiveConflation(@NonNull Class<?> eventType, boolean conflation) {
+        receiveConflation.setConflated(eventType, conflation);
+    }
+
+    /**
+     * @return number of received events dropped, as a newer event of the same class arrived before they were posted
+     */
+    public long getConflatedReceiveCount() {
+        return receiveConflation.getConflatedCount();
+    }
+
+    /**
+     * @return number of remote sticky events not sent, as a newer event of the same class was posted before they were
+     */
+    public long getConflatedStickyCount() {
+        return stickyConflation.getConflatedCount();
+    }
+
+    /**
+     * Sends event types subscribed on this side to remote buses, submitted under subscribedTypes lock so
+     * advertisements go out in version order.
+     *
+     * @param operation one of {@link RemoteInterest} operations
+     * @param types     changed types, null to send all subscribed types
+     */
+    private void advertiseInterest(byte operation, @Nullable Collection<Class<?>> types) {
+        final byte[] data;
+        synchronized (subscribedTypes) {
+            if (types == null) {
+                types = new ArrayList<Class<?>>(subscribedTypes.keySet());
+                //Full list starts a new sequence, receivers match the following updates against it
+                interestVersion = 0;
+            } else {
+                interestVersion++;
+            }
+            data = RemoteInterest.encode(operation, interestVersion, types);
+            OutboundDispatcher.getInstance().submit(new Runnable() {
+                @Override
+                public void run() {
+                    transport.send(WearBusTools.MESSAGE_PATH, MessageHeader.write(MessageHeader.KIND_INTEREST, null, EventCodecs.FORMAT_NONE, data));
+                }
+            });
+        }
+    }
+
     /******************** Local Bus Methods ************************/
 
     /**
@@ -177,16 +435,138 @@ public class EventBus {
      * @param event any kind of Object, no restrictions.
      */
     public void postRemote(Object event) {
-        sendEventOverGooglePlayServices(event, false);
+        sendEventRemote(event, false);
+    }
+
+    /**
+     * Posts the given event (object) to the remote event bus only and asks every node to acknowledge it once it was
+     * posted there. Unlike {@link #postRemote(Object)} it is sent even if no remote subscriber is known, nodes
+     * without one report it instead.
+     *
+     * @param event     any kind of Object, no restrictions.
+     * @param timeoutMs how long to wait for acknowledgements once the event was sent
+     * @return future completed with the outcome on each node
+     */
+    @NonNull
+    public DeliveryFuture postRemoteWithAck(Object event, long timeoutMs) {
+        if (!WearBusTools.isSendable(event)) {
+            throw new RuntimeException("Object needs to be Parcelable or Integer, Long, Float, Double, Short.");
+        }
+        final DeliveryFuture delivery = new DeliveryFuture(timeoutMs);
+        SendByteArrayToNode.OnSendListener listener = new SendByteArrayToNode.OnSendListener() {
+            @Override
+            public void onSending(@NonNull byte[] message) {
+                //Tracked before sending, an acknowledgement can come back before send returns
+                deliveryTracker.track(MessageHeader.getEpoch(message), MessageHeader.requestAck(message), transport.getConnectedNodeIds(), delivery);
+            }
+
+            @Override
+            public void onNotSent() {
+                delivery.onNotSent();
+            }
+        };
+        if (!OutboundDispatcher.getInstance().submit(new SendByteArrayToNode(event, transport, MessageHeader.KIND_EVENT, listener))) {
+            delivery.onNotSent();
+        }
+        return delivery;
     }
 
     /**
-     * Posts the given sticky event (object) to the remote event bus only
+     * Posts the given event (object) to the remote event bus only as a request, a remote subscriber answers it with
+     * {@link #reply(Object, Object)}. The first response of any node completes the request, many requests can wait
+     * for their responses at once.
+     *
+     * @param event        any kind of Object, no restrictions.
+     * @param responseType class of the expected response
+     * @param timeoutMs    how long to wait for the response once the request was sent
+     * @param <R>
+     * @return future completed with the response, or failed once the request timed out, was not handled by any node
+     * or all nodes it was sent to disconnected
+     */
+    @NonNull
+    public <R> RequestFuture<R> request(Object event, @NonNull Class<R> responseType, long timeoutMs) {
+        if (!WearBusTools.isSendable(event)) {
+            throw new RuntimeException("Object needs to be Parcelable or Integer, Long, Float, Double, Short.");
+        }
+        final RequestFuture<R> future = new RequestFuture<R>(responseType, timeoutMs);
+        SendByteArrayToNode.OnSendListener listener = new SendByteArrayToNode.OnSendListener() {
+            @Override
+            public void onSending(@NonNull byte[] message) {
+                requestTracker.track(MessageHeader.getEpoch(message), MessageHeader.getSequence(message), transport.getConnectedNodeIds(), future);
+            }
+
+            @Override
+            public void onNotSent() {
+                future.onNotSent();
+            }
+        };
+        if (!OutboundDispatcher.getInstance().submit(new SendByteArrayToNode(event, transport, MessageHeader.KIND_REQUEST, listener))) {
+            future.onNotSent();
+        }
+        return future;
+    }
+
+    /**
+     * Sends the response to the node that sent the request, call it from the subscriber receiving the request. Each
+     * request can be answered once.
+     *
+     * @param request  event received as a request, the same object the subscriber got
+     * @param response any kind of Object, no restrictions.
+     * @return false if the event is not a received request waiting for a reply
+     */
+    public boolean reply(@NonNull Object request, @NonNull final Object response) {
+        if (!WearBusTools.isSendable(response)) {
+            throw new RuntimeException("Object needs to be Parcelable or Integer, Long, Float, Double, Short.");
+        }
+        final RequestTracker.ReplyTarget target = requestTracker.takeReplyTarget(request);
+        if (target == null) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "reply, no received request waiting for a reply to " + request.getClass().getName());
+            return false;
+        }
+        OutboundDispatcher.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                byte[] message = SendByteArrayToNode.encode(response, MessageHeader.KIND_RESPONSE, RequestTracker.RESPONSE_HEADER_SIZE);
+                if (message == null) {
+                    //Let the requester fail now rather than time out
+                    message = MessageHeader.write(MessageHeader.KIND_RESPONSE, null, EventCodecs.FORMAT_NONE, new byte[RequestTracker.RESPONSE_HEADER_SIZE]);
+                }
+                int offset = MessageHeader.getPayloadOffset(message);
+                MessageHeader.writeInt(message, offset, target.requestId);
+                MessageHeader.writeInt(message, offset + 4, target.requestEpoch);
+                transport.sendToNode(target.nodeId, WearBusTools.MESSAGE_PATH, message);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Tells the node that sent the request nobody here handles it
+     *
+     * @param nodeId
+     * @param requestEpoch
+     * @param requestId
+     */
+    private void sendNotHandled(@NonNull final String nodeId, int requestEpoch, int requestId) {
+        final byte[] payload = new byte[RequestTracker.RESPONSE_HEADER_SIZE];
+        MessageHeader.writeInt(payload, 0, requestId);
+        MessageHeader.writeInt(payload, 4, requestEpoch);
+        OutboundDispatcher.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                transport.sendToNode(nodeId, WearBusTools.MESSAGE_PATH, MessageHeader.write(MessageHeader.KIND_RESPONSE, null, EventCodecs.FORMAT_NONE, payload));
+            }
+        });
+    }
+
+    /**
+     * Posts the given sticky event (object) to the remote event bus only. If an older sticky event of the same class
+     * is still waiting to be sent, it is replaced by this one.
      *
      * @param event any kind of Object, no restrictions.
      */
     public void postStickyRemote(Object event) {
-        sendEventOverGooglePlayServices(event, true);
+        sendEventRemote(event, true);
     }
 
     /**
@@ -197,7 +577,7 @@ public class EventBus {
      * @return
      */
     public <T> void removeStickyEventRemote(Class<T> eventType) {
-        new SendCommandToNode(WearBusTools.PREFIX_CLASS + WearBusTools.MESSAGE_PATH_COMMAND, null, eventType, context).start();
+        stickyConflation.submitRemoval(eventType, new SendCommandToNode(MessageHeader.KIND_REMOVE_STICKY_CLASS, eventType, transport));
     }
 
     /**
@@ -206,23 +586,27 @@ public class EventBus {
      * @return true if the events matched and the sticky event was removed.
      */
     public void removeStickyEventRemote(Object event) {
-        byte[] objectInArray = WearBusTools.parseToSend(event);
-        if (objectInArray != null) {
-            new SendCommandToNode(WearBusTools.PREFIX_EVENT + WearBusTools.MESSAGE_PATH_COMMAND, objectInArray, event.getClass(), context).start();
+        if (event instanceof NoSubscriberEvent) {
+            return;
+        }
+        if (!WearBusTools.isSendable(event)) {
+            throw new RuntimeException("Object needs to be Parcelable or Integer, Long, Float, Double, Short.");
         }
+        stickyConflation.submitRemoval(event.getClass(), new SendCommandToNode(MessageHeader.KIND_REMOVE_STICKY_EVENT, event, transport));
     }
 
     /**
      * Removes all sticky events, on the remote event bus only
      */
     public void removeAllStickyEventsRemote() {
-        new SendCommandToNode(WearBusTools.MESSAGE_PATH_COMMAND, WearBusTools.ACTION_STICKY_CLEAR_ALL.getBytes(), String.class, context).start();
+        stickyConflation.submitRemoval(null, new SendCommandToNode(MessageHeader.KIND_REMOVE_ALL_STICKY, null, transport));
     }
 
     /******************** Global Bus Methods ************************/
 
     /**
-     * Posts the given event (object) to the local and remote event bus
+     * Posts the given event (object) to the local and remote event bus. Remote event is parsed on a background
+     * thread after this returns, so do not change the event once it is posted.
      *
      * @param event any kind of Object, no restrictions.
      */
@@ -232,7 +616,8 @@ public class EventBus {
     }
 
     /**
-     * Posts the given sticky event (object) to the local and remote event bus
+     * Posts the given sticky event (object) to the local and remote event bus. Remote event is parsed on a background
+     * thread after this returns, so do not change the event once it is posted.
      *
      * @param event any kind of Object, no restrictions.
      */
@@ -279,134 +664,280 @@ public class EventBus {
      * @param messageEvent
      */
     public void syncEvent(@NonNull MessageEvent messageEvent) {
-        byte[] objectArray = messageEvent.getData();
-
-        int indexClassDelimiter = messageEvent.getPath().lastIndexOf(WearBusTools.CLASS_NAME_DELIMITER);
-        String className = messageEvent.getPath().substring(indexClassDelimiter + 1);
-
-        boolean isEventMessage = messageEvent.getPath().contains(WearBusTools.MESSAGE_PATH) || messageEvent.getPath().contains(WearBusTools.MESSAGE_PATH_STICKY);
-
-        if (isEventMessage) {
-
-            //Try simple types (String, Integer, Long...)
-            Object obj = WearBusTools.getSendSimpleObject(objectArray, className);
-
-            if (obj == null) {
-                //Find corresponding parcel for particular object in local receivers
-                obj = findParcel(objectArray, className);
-            }
-
-            if (obj != null) {
+        syncEvent(messageEvent.getSourceNodeId(), messageEvent.getData());
+    }
 
-                boolean isSticky = messageEvent.getPath().contains(WearBusTools.MESSAGE_PATH_STICKY);
+    /**
+     * Will take a WearEventBus message, received by a {@link RemoteTransport} or streamed over ChannelApi, and
+     * attempt to parse it to sync with the local EventBus
+     *
+     * @param sourceNodeId
+     * @param message
+     */
+    public void syncEvent(@NonNull String sourceNodeId, @NonNull byte[] message) {
+        MessageHeader header = MessageHeader.read(sourceNodeId, message);
+        if (header == null) {
+            return;
+        }
+        //Retried or replayed message which already arrived
+        if (!duplicateFilter.accept(sourceNodeId, header.epoch, header.sequence)) {
+            duplicateCount.incrementAndGet();
+            return;
+        }
 
-                //send them to local bus
-                if (isSticky) {
-                    postStickyLocal(obj);
-                } else {
-                    postLocal(obj);
+        switch (header.kind) {
+            case MessageHeader.KIND_EVENT:
+                //Nobody would receive it, sticky events are kept for later subscribers though
+                if (!hasSubscriberForEvent(header)) {
+                    skippedDecodeCount.incrementAndGet();
+                    sendAck(header, DeliveryTracker.ACK_NO_SUBSCRIBER);
+                    return;
                 }
-            }
-
-        } else if (messageEvent.getPath().contains(WearBusTools.MESSAGE_PATH_COMMAND)) {
-
-            //Commands used for managing sticky events.
-            stickyEventCommand(messageEvent, objectArray, className);
+                syncReceivedEvent(header);
+                break;
+            case MessageHeader.KIND_STICKY_EVENT:
+                syncReceivedEvent(header);
+                break;
+            case MessageHeader.KIND_REMOVE_STICKY_CLASS:
+                Class<?> eventType = resolveClass(header);
+                if (eventType != null) {
+                    receiveConflation.takePendingSticky(eventType);
+                    removeStickyEventLocal(eventType);
+                }
+                break;
+            case MessageHeader.KIND_REMOVE_STICKY_EVENT:
+                Object removedEvent = decodeEvent(header);
+                if (removedEvent != null) {
+                    //Sticky event waiting for the main thread was received first, it has to be posted before removal
+                    MessageHeader pendingSticky = receiveConflation.takePendingSticky(removedEvent.getClass());
+                    if (pendingSticky != null) {
+                        postDecoded(pendingSticky);
+                    }
+                    removeStickyEventLocal(removedEvent);
+                }
+                break;
+            case MessageHeader.KIND_REMOVE_ALL_STICKY:
+                receiveConflation.takePendingSticky(null);
+                removeAllStickyEventsLocal();
+                break;
+            case MessageHeader.KIND_BATCH:
+                syncBatch(sourceNodeId, header);
+                break;
+            case MessageHeader.KIND_INTEREST:
+                //Node asked for our types, or we lost track of its types and need them resent
+                byte reply = remoteInterest.onAdvertisementReceived(sourceNodeId, header.getPayload());
+                if (reply != RemoteInterest.NONE) {
+                    advertiseInterest(reply, null);
+                }
+                break;
+            case MessageHeader.KIND_ACK:
+                deliveryTracker.onAck(sourceNodeId, header);
+                break;
+            case MessageHeader.KIND_REQUEST:
+                syncRequest(sourceNodeId, header);
+                break;
+            case MessageHeader.KIND_RESPONSE:
+                syncResponse(sourceNodeId, header);
+                break;
+            default:
+                //Sent by a newer BusWear version, nothing to do with it here
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, ignoring message of unknown kind " + header.kind);
+                break;
         }
     }
 
     /**
-     * Method used to find which command and if class/object is needed to retrieve it and call local method.
+     * Posts received event or sticky event, or leaves it for the main thread if its class is conflated
      *
-     * @param messageEvent
-     * @param objectArray
+     * @param header
      */
-    private void stickyEventCommand(@NonNull MessageEvent messageEvent, @NonNull byte[] objectArray, @NonNull String className) {
-
-        if (className.equals(String.class.getName())) {
-
-            String action = new String(objectArray);
-            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent action: " + action);
-
-            if (action.equals(WearBusTools.ACTION_STICKY_CLEAR_ALL)) {
-
-                removeAllStickyEventsLocal();
-
-            } else {
-
-                //Even if it was String it should be removeStickyEventLocal instead of all, it is due to fact that action key is sent as a String.
-                Class classTmp = getClassForName(className);
-                removeStickyEventLocal(classTmp);
-
+    private void syncReceivedEvent(@NonNull MessageHeader header) {
+        Class<?> eventType = resolveClass(header);
+        if (eventType != null && receiveConflation.isConflated(eventType)) {
+            MessageHeader replaced = receiveConflation.offer(eventType, header);
+            if (replaced != null) {
+                sendAck(replaced, DeliveryTracker.ACK_SUPERSEDED);
             }
+            return;
+        }
+        postDecoded(header);
+    }
 
+    private void postDecoded(@NonNull MessageHeader header) {
+        Object event = decodeEvent(header);
+        if (event == null) {
+            sendAck(header, DeliveryTracker.ACK_FAILED);
+            return;
+        }
+        if (header.kind == MessageHeader.KIND_STICKY_EVENT) {
+            postStickyLocal(event);
         } else {
+            postLocal(event);
+        }
+        sendAck(header, DeliveryTracker.ACK_POSTED);
+    }
 
-            if (messageEvent.getPath().startsWith(WearBusTools.PREFIX_CLASS)) {
-
-                //Call removeStickyEventLocal so first retrieve class that needs to be removed.
-                Class classTmp = getClassForName(className);
-                removeStickyEventLocal(classTmp);
-
-            } else {
-
-                //Call removeStickyEventLocal so first retrieve object that needs to be removed.
-                Object obj = WearBusTools.getSendSimpleObject(objectArray, className);
+    /**
+     * Replies to the node that sent the message if it asked for an acknowledgement
+     *
+     * @param header
+     * @param status one of DeliveryTracker ACK_ statuses
+     */
+    private void sendAck(@NonNull MessageHeader header, byte status) {
+        final String nodeId = header.sourceNodeId;
+        if (!header.isAckRequested() || nodeId == null) {
+            return;
+        }
+        final byte[] ack = MessageHeader.write(MessageHeader.KIND_ACK, null, EventCodecs.FORMAT_NONE, DeliveryTracker.encodeAck(header.sequence, header.epoch, status));
+        OutboundDispatcher.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                transport.sendToNode(nodeId, WearBusTools.MESSAGE_PATH, ack);
+            }
+        });
+    }
 
-                if (obj == null) {
-                    //Find corresponding parcel for particular object in local receivers
-                    obj = findParcel(objectArray, className);
-                }
+    /**
+     * Posts received request and remembers where its reply goes, if nobody here would handle it the sender is told so
+     * right away
+     *
+     * @param sourceNodeId
+     * @param header
+     */
+    private void syncRequest(@NonNull String sourceNodeId, @NonNull MessageHeader header) {
+        Object request = hasSubscriberForEvent(header) ? decodeEvent(header) : null;
+        if (request == null) {
+            sendNotHandled(sourceNodeId, header.epoch, header.sequence);
+            return;
+        }
+        requestTracker.onRequestReceived(request, sourceNodeId, header.epoch, header.sequence);
+        postLocal(request);
+    }
 
-                if (obj != null) {
-                    removeStickyEventLocal(obj);
-                }
-            }
+    private void syncResponse(@NonNull String sourceNodeId, @NonNull MessageHeader header) {
+        if (header.getPayloadLength() < RequestTracker.RESPONSE_HEADER_SIZE) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed response");
+            return;
         }
+        int requestId = MessageHeader.readInt(header.getMessage(), header.getPayloadOffset());
+        int requestEpoch = MessageHeader.readInt(header.getMessage(), header.getPayloadOffset() + 4);
+        Object response = header.format == EventCodecs.FORMAT_NONE ? null : decodeEvent(header.skipPayload(RequestTracker.RESPONSE_HEADER_SIZE));
+        requestTracker.onResponse(sourceNodeId, requestEpoch, requestId, response);
     }
 
     /**
-     * Attempts to locate the class specified by className to instantiate with the given objectArray
+     * Unpacks messages sent together by {@link BatchingTransport} and syncs them in the order they were posted. A
+     * malformed batch is dropped as a whole, none of its messages are posted
      *
-     * @param objectArray
-     * @param className
-     * @return
+     * @param sourceNodeId
+     * @param header
      */
-    private Object findParcel(@NonNull byte[] objectArray, @NonNull String className) {
-        try {
-            Class classTmp = getClassForName(className);
-
-            Constructor declaredConstructor = classTmp.getDeclaredConstructor(Parcel.class);
-            declaredConstructor.setAccessible(true);
+    private void syncBatch(@NonNull String sourceNodeId, @NonNull MessageHeader header) {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        if (!WearBusTools.unpackBatch(header.getMessage(), header.getPayloadOffset(), header.getPayloadLength(), messages)) {
+            malformedBatchCount.incrementAndGet();
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, dropped malformed batch from node: " + sourceNodeId);
+            return;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            syncEvent(sourceNodeId, messages.get(i));
+        }
+    }
 
-            return declaredConstructor.newInstance(WearBusTools.byteToParcel(objectArray));
+    private boolean hasSubscriberForEvent(@NonNull MessageHeader header) {
+        Class<?> eventClass = resolveClass(header);
+        return eventClass != null && hasSubscriberForEvent(eventClass);
+    }
 
-        } catch (Exception e) {
-            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent error: " + e.getMessage());
+    /**
+     * Recreates the event in the format it was sent with. Simple types and Parcelables are read straight from the
+     * received message, Parcelables with a generated codec are decoded through it
+     *
+     * @param header
+     * @return
+     */
+    @Nullable
+    private Object decodeEvent(@NonNull MessageHeader header) {
+        //Sent with its class name until this side advertised the type id, the codec is still needed then
+        Class<?> type = resolveClass(header);
+        EventCodec<Object> codec = type == null ? null : EventCodecs.get(type);
+        switch (header.format) {
+            case EventCodecs.FORMAT_SIMPLE:
+                //Simple types (String, Integer, Long...)
+                return WearBusTools.getSendSimpleObject(header.getMessage(), header.getPayloadOffset(), header.getPayloadLength(), header.className);
+            case EventCodecs.FORMAT_PARCEL:
+                if (codec != null && EventCodecs.getFormat(type) == EventCodecs.FORMAT_PARCEL) {
+                    return decodeWithCodec(codec, header);
+                }
+                //Find corresponding parcel for particular object in local receivers
+                return findParcel(header);
+            case EventCodecs.FORMAT_CODEC:
+                if (codec == null) {
+                    Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, no codec registered for " + header.className + ", register the same codec on both sides");
+                    return null;
+                }
+                return decodeWithCodec(codec, header);
+            default:
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, unknown event format " + header.format);
+                return null;
         }
-
-        return null;
     }
 
     @Nullable
-    private Class getClassForName(@NonNull String className) {
+    private Object decodeWithCodec(@NonNull EventCodec<Object> codec, @NonNull MessageHeader header) {
         try {
-            return Class.forName(className);
-        } catch (ClassNotFoundException e) {
+            return codec.decode(header.getPayload());
+        } catch (RuntimeException e) {
             Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent error: " + e.getMessage());
             return null;
         }
     }
 
-    private void sendEventOverGooglePlayServices(Object event, boolean isSticky) {
+    /**
+     * Attempts to locate the class specified by header to instantiate with the payload following it
+     *
+     * @param header
+     * @return
+     */
+    private Object findParcel(@NonNull MessageHeader header) {
+        Class<?> classTmp = resolveClass(header);
+        if (classTmp == null) {
+            return null;
+        }
+        return ParcelableDecoders.decode(classTmp, header.getMessage(), header.getPayloadOffset(), header.getPayloadLength());
+    }
+
+    /**
+     * Returns class resolved from type id by the header, otherwise looks it up by name
+     */
+    @Nullable
+    private Class<?> resolveClass(@NonNull MessageHeader header) {
+        if (header.type != null) {
+            return header.type;
+        }
+        return header.className == null ? null : WearTypeRegistry.forName(header.className);
+    }
 
-        //Try to parse it for sending and then send it
-        byte[] objectInArray = WearBusTools.parseToSend(event);
+    private void sendEventRemote(Object event, boolean isSticky) {
+        if (event instanceof NoSubscriberEvent) {
+            return;
+        }
+        //Only check the type here, parsing is left to the dispatcher thread so posting stays cheap
+        if (!WearBusTools.isSendable(event)) {
+            throw new RuntimeException("Object needs to be Parcelable or Integer, Long, Float, Double, Short.");
+        }
 
-        try {
-            new SendByteArrayToNode(objectInArray, event.getClass(), context, isSticky).start();
-        } catch (Exception e) {
-            Log.e(WearBusTools.BUSWEAR_TAG, "Object cannot be sent: " + e.getMessage());
+        //No remote bus would receive it, sticky events are kept for later subscribers though
+        if (!isSticky && !remoteInterest.isInterested(event.getClass(), transport.getConnectedNodeIds())) {
+            skippedSendCount.incrementAndGet();
+            return;
+        }
+
+        if (isSticky) {
+            //Only the newest unsent value of a sticky event class is sent
+            stickyConflation.post(event);
+        } else {
+            OutboundDispatcher.getInstance().submit(new SendByteArrayToNode(event, transport, false));
         }
     }
 }
@@ -0,0 +1,174 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in transport wrapper that collects messages for a short window and sends them as one batch message, saving
+ * per-message overhead for bursts of events. A batch is sent once the window passes or once it reaches the byte
+ * budget, whichever comes first. Batches are unpacked by EventBus on the receiving side and posted in order.
+ */
+public class BatchingTransport implements RemoteTransport {
+
+    public static final long DEFAULT_WINDOW_MS = 20;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+
+    private static ScheduledExecutorService timer;
+
+    private final RemoteTransport transport;
+    private final long windowMs;
+    private final int maxBatchBytes;
+
+    //Only touched on the OutboundDispatcher thread
+    private String pendingPath;
+    private final List<byte[]> pendingData = new ArrayList<byte[]>();
+    private int pendingBytes;
+    private long batchGeneration;
+
+    private final AtomicLong messagesBatched = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+
+    public BatchingTransport(@NonNull RemoteTransport transport) {
+        this(transport, DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @param transport     used to send batches
+     * @param windowMs      how long the first message of a batch may wait for others
+     * @param maxBatchBytes batch is sent right away once its messages reach that size
+     */
+    public BatchingTransport(@NonNull RemoteTransport transport, long windowMs, int maxBatchBytes) {
+        this.transport = transport;
+        this.windowMs = windowMs;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    @Override
+    public void send(@NonNull String path, @NonNull byte[] data) {
+        int size = WearBusTools.getBatchEntrySize(data);
+        if (size >= maxBatchBytes) {
+            //Too big to share a batch, keep order by sending what is waiting first
+            flush();
+            transport.send(path, data);
+            return;
+        }
+        //Batch goes out on the path of its messages, which is the same for all BusWear messages
+        if (pendingBytes + size > maxBatchBytes || (pendingPath != null && !pendingPath.equals(path))) {
+            flush();
+        }
+        pendingPath = path;
+        pendingData.add(data);
+        pendingBytes += size;
+        if (pendingData.size() == 1) {
+            scheduleFlush(batchGeneration);
+        }
+    }
+
+    @Override
+    public void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+        //Replies are not delayed, messages waiting for the batch still go first
+        flush();
+        transport.sendToNode(nodeId, path, data);
+    }
+
+    @NonNull
+    @Override
+    public Collection<String> getConnectedNodeIds() {
+        return transport.getConnectedNodeIds();
+    }
+
+    @Override
+    public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+        transport.setOnMessageReceivedListener(listener);
+    }
+
+    @Override
+    public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+        transport.setOnNodesChangedListener(listener);
+    }
+
+    @Override
+    public void release() {
+        //A batch still waiting goes out once its window ends
+        transport.release();
+    }
+
+    /**
+     * @return number of messages that went out inside a batch
+     */
+    public long getMessagesBatched() {
+        return messagesBatched.get();
+    }
+
+    /**
+     * @return number of batch messages sent
+     */
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    /**
+     * @return number of transport messages saved thanks to batching
+     */
+    public long getMessagesSaved() {
+        return messagesBatched.get() - batchesSent.get();
+    }
+
+    private void flush() {
+        int count = pendingData.size();
+        if (count == 1) {
+            transport.send(pendingPath, pendingData.get(0));
+        } else if (count > 1) {
+            transport.send(pendingPath, MessageHeader.write(MessageHeader.KIND_BATCH, null, EventCodecs.FORMAT_NONE, WearBusTools.packBatch(pendingData)));
+            messagesBatched.addAndGet(count);
+            batchesSent.incrementAndGet();
+        }
+        pendingPath = null;
+        pendingData.clear();
+        pendingBytes = 0;
+        batchGeneration++;
+    }
+
+    private void scheduleFlush(final long generation) {
+        getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                //Flush on the dispatcher thread so the batch stays in order with messages sent after it
+                boolean submitted = OutboundDispatcher.getInstance().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == batchGeneration) {
+                            flush();
+                        }
+                    }
+                });
+                if (!submitted) {
+                    scheduleFlush(generation);
+                }
+            }
+        }, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BusWear-Batch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,132 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streams payloads too big for MessageApi over ChannelApi. Stream starts with the payload length followed by the
+ * payload. The receiving side does not trust that length beyond {@link WearBusTools#MAX_STREAM_BYTES}, its buffer
+ * starts at the MessageApi limit and grows only as bytes actually arrive.
+ * <p/>
+ * Received payload is still assembled in memory before it is decoded, as events are posted as whole objects and
+ * Parcels are read from a byte array. {@link WearBusTools#MAX_STREAM_BYTES} caps that memory, bigger payloads are
+ * refused by the sending transport.
+ */
+public class ChannelStreams {
+
+    private ChannelStreams() {
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Opens a channel to the node and writes the payload, blocks until it is written so call it off the main thread
+     *
+     * @return true if the whole payload was written
+     */
+    public static boolean send(@NonNull GoogleApiClient googleApiClient, @NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+        ChannelApi.OpenChannelResult openResult = Wearable.ChannelApi.openChannel(googleApiClient, nodeId, path).await();
+        if (!openResult.getStatus().isSuccess()) {
+            Log.v(WearBusTools.BUSWEAR_TAG, "ERROR: failed to open channel to node " + nodeId);
+            return false;
+        }
+
+        Channel channel = openResult.getChannel();
+        Channel.GetOutputStreamResult streamResult = channel.getOutputStream(googleApiClient).await();
+        OutputStream outputStream = streamResult.getOutputStream();
+        if (!streamResult.getStatus().isSuccess() || outputStream == null) {
+            Log.v(WearBusTools.BUSWEAR_TAG, "ERROR: failed to get channel stream to node " + nodeId);
+            channel.close(googleApiClient);
+            return false;
+        }
+
+        DataOutputStream out = new DataOutputStream(outputStream);
+        try {
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            Log.v(WearBusTools.BUSWEAR_TAG, "ERROR: failed to stream to node " + nodeId + ": " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(out);
+            channel.close(googleApiClient);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Reads the payload written by {@link #send(GoogleApiClient, String, String, byte[])}, blocks until it is read
+     *
+     * @return payload or null if it could not be read
+     */
+    @Nullable
+    public static byte[] receive(@NonNull GoogleApiClient googleApiClient, @NonNull Channel channel) {
+        Channel.GetInputStreamResult streamResult = channel.getInputStream(googleApiClient).await();
+        InputStream inputStream = streamResult.getInputStream();
+        if (!streamResult.getStatus().isSuccess() || inputStream == null) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, cannot open channel stream from node " + channel.getNodeId());
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(inputStream);
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > WearBusTools.MAX_STREAM_BYTES) {
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, streamed payload has wrong size: " + length);
+                return null;
+            }
+            return readPayload(in, length);
+        } catch (IOException e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, cannot read channel stream: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+            channel.close(googleApiClient);
+        }
+    }
+
+    /**
+     * Reads the payload of the announced length, a peer announcing more than it sends only costs memory for what
+     * it sent
+     */
+    @NonNull
+    private static byte[] readPayload(@NonNull InputStream in, int length) throws IOException {
+        //Streamed payloads are bigger than the MessageApi limit, smaller ones need a single read buffer
+        byte[] data = new byte[Math.min(length, WearBusTools.MAX_MESSAGE_BYTES)];
+        int offset = 0;
+        while (offset < length) {
+            if (offset == data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(data.length * 2L, length));
+            }
+            int count = in.read(data, offset, data.length - offset);
+            if (count < 0) {
+                throw new EOFException("stream ended after " + offset + " of " + length + " bytes");
+            }
+            offset += count;
+        }
+        return data;
+    }
+
+    private static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
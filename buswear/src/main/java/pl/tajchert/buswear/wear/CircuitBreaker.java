@@ -0,0 +1,94 @@
+package pl.tajchert.buswear.wear;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending to a node after a number of failed attempts in a row, so an unreachable node does not cost an IPC call
+ * for every message. Once open, messages for the node fail right away. After the open time the next message is let
+ * through as a probe, if it is sent the breaker closes, if it fails the breaker stays open for another open time.
+ * The breaker also closes when the node connects again.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME_MS = 30 * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        /**
+         * Open time is over, a probe is allowed
+         */
+        HALF_OPEN
+    }
+
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openTimeMs = DEFAULT_OPEN_TIME_MS;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean open;
+    private boolean probing;
+
+    /**
+     * @param failureThreshold failed attempts in a row opening the breaker
+     * @param openTimeMs       how long to wait before a probe
+     */
+    public synchronized void configure(int failureThreshold, long openTimeMs) {
+        if (failureThreshold < 1 || openTimeMs < 0) {
+            throw new IllegalArgumentException("Failure threshold must be positive and open time must not be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTimeMs = openTimeMs;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks if an attempt can be made, when open time is over the caller's attempt is the probe
+     */
+    public synchronized boolean allowAttempt() {
+        if (!open) {
+            return true;
+        }
+        if (!probing && SystemClock.elapsedRealtime() - openedAt >= openTimeMs) {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        open = false;
+        probing = false;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (probing || consecutiveFailures >= failureThreshold) {
+            open = true;
+            probing = false;
+            openedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Closes the breaker, called when the node connects again
+     */
+    public synchronized void reset() {
+        onSuccess();
+    }
+
+    public synchronized State getState() {
+        if (!open) {
+            return State.CLOSED;
+        }
+        return probing || SystemClock.elapsedRealtime() - openedAt >= openTimeMs ? State.HALF_OPEN : State.OPEN;
+    }
+}
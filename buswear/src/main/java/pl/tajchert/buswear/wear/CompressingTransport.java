@@ -0,0 +1,98 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in transport wrapper that deflates payloads above a size threshold. Compressed messages have
+ * {@link MessageHeader#FLAG_DEFLATED} set in their header, so EventBus on the receiving side knows to inflate them.
+ * Small payloads, like primitives, are sent as they are because compressing them costs more than it saves.
+ * Both sides need a BusWear version that understands compressed messages.
+ */
+public class CompressingTransport implements RemoteTransport {
+
+    public static final int DEFAULT_THRESHOLD_BYTES = 256;
+
+    private final RemoteTransport transport;
+    private final int thresholdBytes;
+
+    private final AtomicLong messagesCompressed = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public CompressingTransport(@NonNull RemoteTransport transport) {
+        this(transport, DEFAULT_THRESHOLD_BYTES);
+    }
+
+    /**
+     * @param transport      used to send messages
+     * @param thresholdBytes payloads smaller than that are not compressed
+     */
+    public CompressingTransport(@NonNull RemoteTransport transport, int thresholdBytes) {
+        this.transport = transport;
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    @Override
+    public void send(@NonNull String path, @NonNull byte[] data) {
+        transport.send(path, compress(data));
+    }
+
+    @Override
+    public void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+        transport.sendToNode(nodeId, path, compress(data));
+    }
+
+    /**
+     * @return deflated message, or the message itself if it is below the threshold or does not get smaller
+     */
+    @NonNull
+    private byte[] compress(@NonNull byte[] data) {
+        if (data.length < thresholdBytes || !MessageHeader.isMessage(data)) {
+            return data;
+        }
+        //Header stays readable, only what follows it is compressed
+        byte[] body = PayloadCompression.compress(data, MessageHeader.SIZE, data.length - MessageHeader.SIZE);
+        if (body == null) {
+            return data;
+        }
+        byte[] compressed = MessageHeader.withDeflatedBody(data, body);
+        messagesCompressed.incrementAndGet();
+        bytesSaved.addAndGet(data.length - compressed.length);
+        return compressed;
+    }
+
+    @NonNull
+    @Override
+    public Collection<String> getConnectedNodeIds() {
+        return transport.getConnectedNodeIds();
+    }
+
+    @Override
+    public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+        transport.setOnMessageReceivedListener(listener);
+    }
+
+    @Override
+    public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+        transport.setOnNodesChangedListener(listener);
+    }
+
+    @Override
+    public void release() {
+        transport.release();
+    }
+
+    public long getMessagesCompressed() {
+        return messagesCompressed.get();
+    }
+
+    /**
+     * @return number of payload bytes not sent thanks to compression
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+}
@@ -0,0 +1,195 @@
+package pl.tajchert.buswear.wear;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an acknowledged remote event. It completes once every node connected when the event was sent
+ * acknowledged it, or when the timeout passes, nodes which did not acknowledge are reported as
+ * {@link DeliveryReport.Outcome#TIMED_OUT}. If connected nodes were not known at that moment it completes with the
+ * timeout only. An event which could not be sent completes right away with an empty report.
+ */
+public class DeliveryFuture implements Future<DeliveryReport> {
+
+    public interface Callback {
+        /**
+         * Called once, on the thread which completed the delivery, it should only hand the work off
+         */
+        void onComplete(@NonNull DeliveryReport report);
+    }
+
+    private final long timeoutMs;
+    private final CountDownLatch done = new CountDownLatch(1);
+    //Everything below is guarded by this
+    private final Map<String, DeliveryReport.Outcome> outcomes = new HashMap<String, DeliveryReport.Outcome>();
+    private final Map<String, Long> roundTripMs = new HashMap<String, Long>();
+    private Set<String> expectedNodes = Collections.emptySet();
+    private long sentAt;
+    @Nullable
+    private Runnable onCancel;
+    @Nullable
+    private Callback callback;
+    @Nullable
+    private DeliveryReport report;
+    private boolean cancelled;
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public DeliveryFuture(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Sets callback told about the report, right away if the delivery is already complete. Not called for a
+     * cancelled delivery.
+     */
+    public void setCallback(@Nullable Callback callback) {
+        DeliveryReport completed;
+        synchronized (this) {
+            this.callback = callback;
+            completed = report;
+        }
+        if (completed != null && callback != null) {
+            callback.onComplete(completed);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Called once the message was handed to the transport
+     *
+     * @param nodes    nodes expected to acknowledge
+     * @param onCancel removes the delivery from its tracker
+     */
+    public synchronized void onSent(@NonNull Collection<String> nodes, @NonNull Runnable onCancel) {
+        this.expectedNodes = new HashSet<String>(nodes);
+        this.sentAt = SystemClock.elapsedRealtime();
+        this.onCancel = onCancel;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     *
+     * @return true if the delivery completed with this acknowledgement
+     */
+    public boolean onAck(@NonNull String nodeId, @NonNull DeliveryReport.Outcome outcome) {
+        synchronized (this) {
+            if (report != null || outcomes.containsKey(nodeId)) {
+                return false;
+            }
+            outcomes.put(nodeId, outcome);
+            roundTripMs.put(nodeId, SystemClock.elapsedRealtime() - sentAt);
+            if (expectedNodes.isEmpty() || !outcomes.keySet().containsAll(expectedNodes)) {
+                return false;
+            }
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Completes the delivery, nodes which did not acknowledge are reported as timed out
+     */
+    public void onTimeout() {
+        synchronized (this) {
+            for (String nodeId : expectedNodes) {
+                if (!outcomes.containsKey(nodeId)) {
+                    outcomes.put(nodeId, DeliveryReport.Outcome.TIMED_OUT);
+                }
+            }
+        }
+        complete();
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Completes with an empty report, the event could not be sent
+     */
+    public void onNotSent() {
+        complete();
+    }
+
+    private void complete() {
+        Callback completedCallback;
+        DeliveryReport completed;
+        synchronized (this) {
+            if (report != null || cancelled) {
+                return;
+            }
+            report = new DeliveryReport(outcomes, roundTripMs);
+            completed = report;
+            completedCallback = callback;
+        }
+        done.countDown();
+        if (completedCallback != null) {
+            completedCallback.onComplete(completed);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable cancelAction;
+        synchronized (this) {
+            if (report != null || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            cancelAction = onCancel;
+        }
+        if (cancelAction != null) {
+            cancelAction.run();
+        }
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public DeliveryReport get() throws InterruptedException {
+        done.await();
+        return getReport();
+    }
+
+    @Override
+    public DeliveryReport get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getReport();
+    }
+
+    private synchronized DeliveryReport getReport() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return report;
+    }
+}
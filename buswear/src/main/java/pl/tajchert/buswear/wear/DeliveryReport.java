@@ -0,0 +1,82 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outcome of an acknowledged remote event on each node, with round-trip time of nodes that acknowledged it.
+ */
+public class DeliveryReport {
+
+    public enum Outcome {
+        /**
+         * Event was decoded and posted to the remote bus
+         */
+        POSTED,
+        /**
+         * Remote bus has no subscriber for the event, it was not decoded
+         */
+        NO_SUBSCRIBER,
+        /**
+         * Remote bus conflates the event class and a newer event replaced it before it was posted
+         */
+        SUPERSEDED,
+        /**
+         * Remote bus could not decode the event
+         */
+        FAILED,
+        /**
+         * Node was connected when the event was sent but did not acknowledge it in time
+         */
+        TIMED_OUT
+    }
+
+    private final Map<String, Outcome> outcomes;
+    private final Map<String, Long> roundTripMs;
+
+    DeliveryReport(@NonNull Map<String, Outcome> outcomes, @NonNull Map<String, Long> roundTripMs) {
+        this.outcomes = Collections.unmodifiableMap(new HashMap<String, Outcome>(outcomes));
+        this.roundTripMs = Collections.unmodifiableMap(new HashMap<String, Long>(roundTripMs));
+    }
+
+    /**
+     * @return outcome by node id, empty if the event could not be sent
+     */
+    @NonNull
+    public Map<String, Outcome> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * @return milliseconds from sending the event to receiving the acknowledgement of the node, null if the node did
+     * not acknowledge it
+     */
+    @Nullable
+    public Long getRoundTripMs(@NonNull String nodeId) {
+        return roundTripMs.get(nodeId);
+    }
+
+    /**
+     * @return true if at least one node acknowledged and every node posted the event
+     */
+    public boolean isPostedToAll() {
+        if (outcomes.isEmpty()) {
+            return false;
+        }
+        for (Outcome outcome : outcomes.values()) {
+            if (outcome != Outcome.POSTED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReport" + outcomes + ", round trip ms " + roundTripMs;
+    }
+}
@@ -0,0 +1,139 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledged remote events waiting for their acknowledgements, by epoch and sequence number of their message.
+ * Receiving side replies to a message with {@link MessageHeader#FLAG_ACK_REQUESTED} with a
+ * {@link MessageHeader#KIND_ACK} message:
+ * <pre>
+ * sequence number (4) | epoch (4) | status (1)
+ * </pre>
+ * Sequence numbers start over with every process, the epoch keeps an acknowledgement of a message sent by an earlier
+ * process, for example replayed from the journal, from completing an unrelated event.
+ */
+public class DeliveryTracker {
+
+    public static final byte ACK_POSTED = 0;
+    public static final byte ACK_NO_SUBSCRIBER = 1;
+    public static final byte ACK_SUPERSEDED = 2;
+    public static final byte ACK_FAILED = 3;
+
+    private static final int ACK_SIZE = 9;
+
+    private static ScheduledExecutorService timer;
+
+    private final Map<Long, DeliveryFuture> pending = new ConcurrentHashMap<Long, DeliveryFuture>();
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Creates acknowledgement payload
+     */
+    @NonNull
+    public static byte[] encodeAck(int sequence, int epoch, byte status) {
+        byte[] payload = new byte[ACK_SIZE];
+        MessageHeader.writeInt(payload, 0, sequence);
+        MessageHeader.writeInt(payload, 4, epoch);
+        payload[8] = status;
+        return payload;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Starts waiting for acknowledgements, called right before the message is sent
+     *
+     * @param epoch    epoch of the message
+     * @param sequence sequence number of the message
+     * @param nodes    nodes expected to acknowledge, empty if not known
+     */
+    public void track(int epoch, int sequence, @NonNull Collection<String> nodes, @NonNull final DeliveryFuture future) {
+        final Long key = toKey(epoch, sequence);
+        pending.put(key, future);
+        future.onSent(nodes, new Runnable() {
+            @Override
+            public void run() {
+                pending.remove(key);
+            }
+        });
+        getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(key) != null) {
+                    future.onTimeout();
+                }
+            }
+        }, future.getTimeoutMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Handles received acknowledgement, acknowledgements of completed or unknown messages are ignored
+     */
+    public void onAck(@NonNull String nodeId, @NonNull MessageHeader header) {
+        if (header.getPayloadLength() < ACK_SIZE) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed acknowledgement");
+            return;
+        }
+        byte[] message = header.getMessage();
+        int offset = header.getPayloadOffset();
+        Long key = toKey(MessageHeader.readInt(message, offset + 4), MessageHeader.readInt(message, offset));
+        DeliveryFuture future = pending.get(key);
+        if (future != null && future.onAck(nodeId, toOutcome(message[offset + 8]))) {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * @return number of acknowledged events waiting for their acknowledgements
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @NonNull
+    private static DeliveryReport.Outcome toOutcome(byte status) {
+        switch (status) {
+            case ACK_POSTED:
+                return DeliveryReport.Outcome.POSTED;
+            case ACK_NO_SUBSCRIBER:
+                return DeliveryReport.Outcome.NO_SUBSCRIBER;
+            case ACK_SUPERSEDED:
+                return DeliveryReport.Outcome.SUPERSEDED;
+            default:
+                return DeliveryReport.Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Identifies a message among messages of all processes of its sender
+     */
+    static long toKey(int epoch, int sequence) {
+        return (long) epoch << 32 | (sequence & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Timer of acknowledgement and request timeouts
+     */
+    static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BusWear-Timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,123 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops messages received more than once, as retries and journal replays can send a message again. Each sender node
+ * has a sliding window over sequence numbers of its current epoch, a bitmap of the last {@link #WINDOW_SIZE}
+ * numbers kept as 64 bit blocks. Moving the window clears whole blocks, so every check takes constant time and memory
+ * does not grow with the number of messages.
+ * <p/>
+ * A message older than the window cannot be told apart from a duplicate. It is accepted, as it is far more likely
+ * an entry replayed from the sender's journal after a long time than a duplicate, and counted by
+ * {@link #getTooOldCount()}. A new epoch means the
+ * sender restarted, it gets a new window, the previous one is kept for messages of the old epoch still arriving,
+ * for example replayed from the sender's journal.
+ */
+public class DuplicateFilter {
+
+    /**
+     * Sequence numbers tracked behind the newest one, at least
+     */
+    public static final int WINDOW_SIZE = 1024 - Long.SIZE;
+
+    private static final int BLOCKS = 16;
+    private static final int BLOCK_MASK = BLOCKS - 1;
+    private static final int MAX_NODES = 16;
+
+    //Guarded by this
+    private long tooOldCount;
+    private final Map<String, Window[]> windowsByNode = new LinkedHashMap<String, Window[]>(MAX_NODES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Window[]> eldest) {
+            return size() > MAX_NODES;
+        }
+    };
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks the message and marks it as received
+     *
+     * @return false if the message was received before
+     */
+    public synchronized boolean accept(@NonNull String nodeId, int epoch, int sequence) {
+        //Current window first, then the one of the previous epoch
+        Window[] windows = windowsByNode.get(nodeId);
+        if (windows == null) {
+            windows = new Window[2];
+            windowsByNode.put(nodeId, windows);
+        }
+        Window window;
+        if (windows[0] != null && windows[0].epoch == epoch) {
+            window = windows[0];
+        } else if (windows[1] != null && windows[1].epoch == epoch) {
+            window = windows[1];
+        } else {
+            windows[1] = windows[0];
+            windows[0] = new Window(epoch, sequence);
+            return true;
+        }
+        if (window.isTooOld(sequence)) {
+            tooOldCount++;
+            return true;
+        }
+        return window.accept(sequence);
+    }
+
+    /**
+     * @return number of messages accepted without the check, as they were older than the window
+     */
+    public synchronized long getTooOldCount() {
+        return tooOldCount;
+    }
+
+    private static class Window {
+
+        final int epoch;
+        final long[] blocks = new long[BLOCKS];
+        int newest;
+
+        Window(int epoch, int first) {
+            this.epoch = epoch;
+            this.newest = first;
+            mark(first);
+        }
+
+        boolean isTooOld(int sequence) {
+            return sequence - newest <= -WINDOW_SIZE;
+        }
+
+        /**
+         * Only called for numbers inside the window or ahead of it
+         */
+        boolean accept(int sequence) {
+            //Sequence numbers wrap, only their distance counts
+            int distance = sequence - newest;
+            if (distance > 0) {
+                int blocksAhead = ((newest & (Long.SIZE - 1)) + distance) >>> 6;
+                int toClear = Math.min(blocksAhead, BLOCKS);
+                int block = newest >>> 6;
+                for (int i = 1; i <= toClear; i++) {
+                    blocks[(block + i) & BLOCK_MASK] = 0;
+                }
+                newest = sequence;
+                mark(sequence);
+                return true;
+            }
+            long bit = 1L << (sequence & (Long.SIZE - 1));
+            int index = (sequence >>> 6) & BLOCK_MASK;
+            if ((blocks[index] & bit) != 0) {
+                return false;
+            }
+            blocks[index] |= bit;
+            return true;
+        }
+
+        private void mark(int sequence) {
+            blocks[(sequence >>> 6) & BLOCK_MASK] |= 1L << (sequence & (Long.SIZE - 1));
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package pl.tajchert.buswear.wear;
 
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.WearableListenerService;
 
+import java.util.concurrent.TimeUnit;
+
 import pl.tajchert.buswear.EventBus;
 
 public class EventCatcher extends WearableListenerService {
@@ -13,4 +18,30 @@ public class EventCatcher extends WearableListenerService {
         super.onMessageReceived(messageEvent);
     }
 
+    @Override
+    public void onChannelOpened(Channel channel) {
+        if (WearBusTools.isBusWearPath(channel.getPath())) {
+            GoogleApiClient googleApiClient = SendWearManager.getInstance(getApplicationContext());
+            if (googleApiClient.isConnected() || googleApiClient.blockingConnect(WearBusTools.CHANNEL_CONNECT_TIME_OUT_MS, TimeUnit.MILLISECONDS).isSuccess()) {
+                byte[] objectArray = ChannelStreams.receive(googleApiClient, channel);
+                if (objectArray != null) {
+                    EventBus.getDefault(getApplicationContext()).syncEvent(channel.getNodeId(), objectArray);
+                }
+            }
+        }
+        super.onChannelOpened(channel);
+    }
+
+    @Override
+    public void onPeerConnected(Node peer) {
+        NodeRegistry.getInstance().onPeerConnected(peer);
+        super.onPeerConnected(peer);
+    }
+
+    @Override
+    public void onPeerDisconnected(Node peer) {
+        NodeRegistry.getInstance().onPeerDisconnected(peer);
+        super.onPeerDisconnected(peer);
+    }
+
 }
@@ -0,0 +1,20 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Encodes and decodes events of one class, implementations are generated by buswear-compiler for classes annotated
+ * with {@link pl.tajchert.buswear.WearEvent}. Hand written codecs, registered with
+ * {@link EventCodecs#register(Class, EventCodec)}, let events be sent in a compact format of their own, the event
+ * class does not need to be Parcelable then.
+ *
+ * @param <T> event class
+ */
+public interface EventCodec<T> {
+
+    @NonNull
+    byte[] encode(@NonNull T event);
+
+    @NonNull
+    T decode(@NonNull byte[] data);
+}
@@ -0,0 +1,12 @@
+package pl.tajchert.buswear.wear;
+
+/**
+ * Generated by buswear-compiler, lists the codecs generated for the module.
+ */
+public interface EventCodecIndex {
+
+    /**
+     * Registers every generated codec with {@link EventCodecs#registerParcelCodec(Class, EventCodec)}.
+     */
+    void registerCodecs();
+}
@@ -0,0 +1,132 @@
+package pl.tajchert.buswear.wear;
+
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codecs for event classes, generated by buswear-compiler or written by hand. Events with a codec are encoded and
+ * decoded through it, without reflection, and do not need to be Parcelable. The generated index is loaded when the
+ * first EventBus is created, it can be installed explicitly with {@link #install(EventCodecIndex)} as well.
+ * <p/>
+ * Every message carries the format its event was encoded with, so the receiving side never guesses: String and boxed
+ * primitives are {@link #FORMAT_SIMPLE}, Parcelables and generated codecs {@link #FORMAT_PARCEL} and codecs
+ * registered with {@link #register(Class, EventCodec)} {@link #FORMAT_CODEC}, which needs the same codec registered
+ * on both sides.
+ */
+public class EventCodecs {
+
+    public static final String GENERATED_INDEX = "pl.tajchert.buswear.generated.BusWearEventCodecs";
+
+    //No event in the message
+    public static final byte FORMAT_NONE = 0;
+    public static final byte FORMAT_SIMPLE = 1;
+    public static final byte FORMAT_PARCEL = 2;
+    public static final byte FORMAT_CODEC = 3;
+
+    private static final Map<Class<?>, EventCodec<?>> codecs = new ConcurrentHashMap<Class<?>, EventCodec<?>>();
+    private static final Map<Class<?>, Byte> formats = new ConcurrentHashMap<Class<?>, Byte>();
+    private static boolean generatedIndexLoaded;
+
+    private EventCodecs() {
+    }
+
+    /**
+     * Registers codecs from the index, use it for indexes generated with a custom name in library modules.
+     *
+     * @param index generated index
+     */
+    public static void install(@NonNull EventCodecIndex index) {
+        index.registerCodecs();
+    }
+
+    /**
+     * Events of the given class will be encoded and decoded with the codec, and sent with their compact type id.
+     * Register the same codec on the other side, it cannot decode these events otherwise.
+     *
+     * @param type  event class
+     * @param codec
+     * @param <T>
+     */
+    public static <T> void register(@NonNull Class<T> type, @NonNull EventCodec<T> codec) {
+        register(type, codec, FORMAT_CODEC, WearTypeRegistry.getTypeId(type));
+    }
+
+    /**
+     * Same as {@link #register(Class, EventCodec)} for codecs writing events exactly as Parcelable does, like the
+     * generated ones. Their events can be decoded from the Parcel on the other side even if it has no codec.
+     *
+     * @param type  Parcelable event class
+     * @param codec
+     * @param <T>
+     */
+    public static <T> void registerParcelCodec(@NonNull Class<T> type, @NonNull EventCodec<T> codec) {
+        register(type, codec, FORMAT_PARCEL, WearTypeRegistry.getTypeId(type));
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Used by generated codec indexes, type id is computed at compile time so it does not change with obfuscation
+     */
+    public static <T> void registerParcelCodec(@NonNull Class<T> type, @NonNull EventCodec<T> codec, int typeId) {
+        register(type, codec, FORMAT_PARCEL, typeId);
+    }
+
+    private static <T> void register(@NonNull Class<T> type, @NonNull EventCodec<T> codec, byte format, int typeId) {
+        codecs.put(type, codec);
+        formats.put(type, format);
+        WearTypeRegistry.register(type, typeId);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns codec for the exact class or null if there is none
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static EventCodec<Object> get(@NonNull Class<?> type) {
+        return (EventCodec<Object>) codecs.get(type);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns format events of the class are sent in, or {@link #FORMAT_NONE} if they cannot be sent
+     */
+    public static byte getFormat(@NonNull Class<?> type) {
+        Byte format = formats.get(type);
+        if (format != null) {
+            return format;
+        }
+        if (type == String.class || type == Integer.class || type == Long.class || type == Float.class
+                || type == Double.class || type == Short.class) {
+            return FORMAT_SIMPLE;
+        }
+        if (Parcelable.class.isAssignableFrom(type)) {
+            return FORMAT_PARCEL;
+        }
+        return FORMAT_NONE;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Loads index generated under the default name, once
+     */
+    public static synchronized void loadGeneratedIndex() {
+        if (generatedIndexLoaded) {
+            return;
+        }
+        generatedIndexLoaded = true;
+        try {
+            install((EventCodecIndex) Class.forName(GENERATED_INDEX).getDeclaredConstructor().newInstance());
+        } catch (ClassNotFoundException e) {
+            //No event annotated with WearEvent in the application module
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException | ClassCastException e) {
+            Log.e(WearBusTools.BUSWEAR_TAG, "Cannot load generated event codecs: " + e);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package pl.tajchert.buswear.wear;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages with Wearable.MessageApi to all connected nodes, payloads above
+ * {@link WearBusTools#MAX_MESSAGE_BYTES} are streamed over ChannelApi instead. Every node has its own
+ * {@link NodeOutbox}, so a slow or unreachable node does not hold back the others. Failed messages are retried as
+ * the {@link RetryPolicy} says and a node failing repeatedly is skipped until its {@link CircuitBreaker} lets a probe
+ * through or the node connects again. With an {@link OutboundJournal} set
+ * messages are kept until the nodes received them and sent again when a node connects. The transport listens to
+ * {@link NodeRegistry} until {@link #release()} is called. Incoming messages do not go through
+ * {@link #setOnMessageReceivedListener(OnMessageReceivedListener)}, they are delivered by {@link EventCatcher} to the
+ * default EventBus.
+ */
+public class GooglePlayServicesTransport implements RemoteTransport {
+
+    private final Context context;
+    private final int nodeQueueCapacity;
+    private final NodeOutbox.OverflowPolicy overflowPolicy;
+    private final Map<String, NodeOutbox> outboxes = new ConcurrentHashMap<String, NodeOutbox>();
+    @Nullable
+    private volatile OutboundJournal journal;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private volatile int failureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openTimeMs = CircuitBreaker.DEFAULT_OPEN_TIME_MS;
+    @Nullable
+    private volatile OnNodesChangedListener onNodesChangedListener;
+
+    private final NodeOutbox.Sender sender = new NodeOutbox.Sender() {
+        @Override
+        public boolean send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+            GoogleApiClient googleApiClient = SendWearManager.getInstance(context);
+            if (data.length > WearBusTools.MAX_MESSAGE_BYTES) {
+                return ChannelStreams.send(googleApiClient, nodeId, path, data);
+            }
+            MessageApi.SendMessageResult result = Wearable.MessageApi.sendMessage(googleApiClient, nodeId, path, data)
+                    .await(WearBusTools.SEND_TIME_OUT_MS, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess()) {
+                Log.v(WearBusTools.BUSWEAR_TAG, "ERROR: failed to send Message via Google Play Services to node " + nodeId);
+                return false;
+            }
+            return true;
+        }
+    };
+
+    private final NodeRegistry.OnNodesChangedListener nodesListener = new NodeRegistry.OnNodesChangedListener() {
+        @Override
+        public void onNodeConnected(@NonNull String nodeId) {
+            NodeOutbox outbox = outboxes.get(nodeId);
+            if (outbox != null) {
+                outbox.getCircuitBreaker().reset();
+            }
+            if (journal != null) {
+                replayJournal();
+            }
+            OnNodesChangedListener listener = onNodesChangedListener;
+            if (listener != null) {
+                listener.onNodeConnected(nodeId);
+            }
+        }
+
+        @Override
+        public void onNodeDisconnected(@NonNull final String nodeId) {
+            OutboundDispatcher.getInstance().submit(new Runnable() {
+                @Override
+                public void run() {
+                    //Queued messages still drain, a node connecting again gets a new outbox
+                    NodeOutbox outbox = outboxes.remove(nodeId);
+                    if (outbox != null) {
+                        outbox.shutdown();
+                    }
+                }
+            });
+            OnNodesChangedListener listener = onNodesChangedListener;
+            if (listener != null) {
+                listener.onNodeDisconnected(nodeId);
+            }
+        }
+    };
+
+    public GooglePlayServicesTransport(@NonNull Context context) {
+        this(context, NodeOutbox.DEFAULT_CAPACITY, NodeOutbox.OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param context
+     * @param nodeQueueCapacity maximum number of messages waiting for each node
+     * @param overflowPolicy    what to do with a message for a node whose queue is full
+     */
+    public GooglePlayServicesTransport(@NonNull Context context, int nodeQueueCapacity, @NonNull NodeOutbox.OverflowPolicy overflowPolicy) {
+        if (nodeQueueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.context = context.getApplicationContext();
+        this.nodeQueueCapacity = nodeQueueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        NodeRegistry.getInstance().addOnNodesChangedListener(nodesListener);
+    }
+
+    @Override
+    public void send(@NonNull final String path, @NonNull final byte[] data) {
+        SendWearManager.runWhenConnected(context, new Runnable() {
+            @Override
+            public void run() {
+                if (isTooBig(data)) {
+                    return;
+                }
+                List<Node> nodes = NodeRegistry.getInstance().getConnectedNodes(SendWearManager.getInstance(context));
+                OutboundJournal journal = GooglePlayServicesTransport.this.journal;
+                if (journal != null && journal.append(path, data)) {
+                    //Older unsent messages go first
+                    sendUnsent(journal, nodes);
+                    return;
+                }
+                for (Node node : nodes) {
+                    getOutbox(node.getId()).offer(path, data);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void sendToNode(@NonNull final String nodeId, @NonNull final String path, @NonNull final byte[] data) {
+        SendWearManager.runWhenConnected(context, new Runnable() {
+            @Override
+            public void run() {
+                if (isTooBig(data)) {
+                    return;
+                }
+                getOutbox(nodeId).offer(path, data);
+            }
+        });
+    }
+
+    /**
+     * Receivers assemble streamed payloads in memory, they do not accept more than
+     * {@link WearBusTools#MAX_STREAM_BYTES}
+     */
+    private static boolean isTooBig(@NonNull byte[] data) {
+        if (data.length > WearBusTools.MAX_STREAM_BYTES) {
+            Log.e(WearBusTools.BUSWEAR_TAG, "Object is too big to push it via Google Play Services: " + data.length + " bytes, the limit is " + WearBusTools.MAX_STREAM_BYTES);
+            return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public Collection<String> getConnectedNodeIds() {
+        List<Node> nodes = NodeRegistry.getInstance().getKnownNodes();
+        List<String> nodeIds = new ArrayList<String>(nodes.size());
+        for (Node node : nodes) {
+            nodeIds.add(node.getId());
+        }
+        return nodeIds;
+    }
+
+    /**
+     * Keeps messages in the journal until every node connected at the time they were sent received them, unsent
+     * messages are sent again to the nodes which did not receive them with the next message or when a node connects.
+     * Set it before the first message is sent.
+     *
+     * @param journal journal or null to stop keeping messages
+     */
+    public void setJournal(@Nullable OutboundJournal journal) {
+        this.journal = journal;
+        if (journal != null && journal.getUnsentCount() > 0) {
+            //Left by a previous process
+            replayJournal();
+        }
+    }
+
+    /**
+     * Sets how failed messages are retried, {@link RetryPolicy#DEFAULT} if not set
+     */
+    public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        for (NodeOutbox outbox : outboxes.values()) {
+            outbox.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    /**
+     * Sets when circuit breakers of nodes open and for how long, {@link CircuitBreaker#DEFAULT_FAILURE_THRESHOLD}
+     * failed attempts in a row and {@link CircuitBreaker#DEFAULT_OPEN_TIME_MS} if not set
+     *
+     * @param failureThreshold failed attempts in a row opening the breaker of a node
+     * @param openTimeMs       how long to wait before letting a probe through
+     */
+    public void setCircuitBreaker(int failureThreshold, long openTimeMs) {
+        if (failureThreshold < 1 || openTimeMs < 0) {
+            throw new IllegalArgumentException("Failure threshold must be positive and open time must not be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTimeMs = openTimeMs;
+        for (NodeOutbox outbox : outboxes.values()) {
+            outbox.getCircuitBreaker().configure(failureThreshold, openTimeMs);
+        }
+    }
+
+    /**
+     * @return circuit breaker state of each connected node messages were sent to, by node id
+     */
+    @NonNull
+    public Map<String, CircuitBreaker.State> getCircuitStates() {
+        Map<String, CircuitBreaker.State> states = new HashMap<String, CircuitBreaker.State>();
+        for (NodeOutbox outbox : outboxes.values()) {
+            states.put(outbox.getNodeId(), outbox.getCircuitBreaker().getState());
+        }
+        return states;
+    }
+
+    private void replayJournal() {
+        OutboundDispatcher.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                SendWearManager.runWhenConnected(context, new Runnable() {
+                    @Override
+                    public void run() {
+                        OutboundJournal journal = GooglePlayServicesTransport.this.journal;
+                        if (journal != null) {
+                            sendUnsent(journal, NodeRegistry.getInstance().getConnectedNodes(SendWearManager.getInstance(context)));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void sendUnsent(@NonNull OutboundJournal journal, @NonNull List<Node> nodes) {
+        List<String> nodeIds = new ArrayList<String>(nodes.size());
+        for (Node node : nodes) {
+            nodeIds.add(node.getId());
+        }
+        //Each entry only goes to nodes which did not receive it yet
+        for (OutboundJournal.Entry entry : journal.takeUnsent(nodeIds)) {
+            JournalDelivery delivery = new JournalDelivery(journal, entry);
+            for (String nodeId : entry.nodeIds) {
+                getOutbox(nodeId).offer(entry.path, entry.data, delivery);
+            }
+        }
+    }
+
+    @Override
+    public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+        //Messages arrive through EventCatcher
+    }
+
+    /**
+     * Nodes are reported as {@link NodeRegistry} learns about them, which starts with the first message sent
+     */
+    @Override
+    public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+        onNodesChangedListener = listener;
+    }
+
+    /**
+     * Stops listening to nodes connecting, call it once the transport is no longer used so it can be garbage
+     * collected. Messages already queued are still sent, nodes connecting later do not get the journal replayed.
+     */
+    @Override
+    public void release() {
+        NodeRegistry.getInstance().removeOnNodesChangedListener(nodesListener);
+        onNodesChangedListener = null;
+    }
+
+    /**
+     * @return outbound queues of connected nodes messages were sent to
+     */
+    @NonNull
+    public Collection<NodeOutbox> getNodeOutboxes() {
+        return Collections.unmodifiableCollection(outboxes.values());
+    }
+
+    /**
+     * @return number of messages waiting for each node, by node id
+     */
+    @NonNull
+    public Map<String, Integer> getNodeQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (NodeOutbox outbox : outboxes.values()) {
+            depths.put(outbox.getNodeId(), outbox.getQueueDepth());
+        }
+        return depths;
+    }
+
+    @NonNull
+    private NodeOutbox getOutbox(@NonNull String nodeId) {
+        //Only called on the OutboundDispatcher thread
+        NodeOutbox outbox = outboxes.get(nodeId);
+        if (outbox == null) {
+            outbox = new NodeOutbox(nodeId, nodeQueueCapacity, overflowPolicy, sender);
+            outbox.setRetryPolicy(retryPolicy);
+            outbox.getCircuitBreaker().configure(failureThreshold, openTimeMs);
+            outboxes.put(nodeId, outbox);
+        }
+        return outbox;
+    }
+
+    /**
+     * Reports to the journal which nodes the entry was queued for received it
+     */
+    private static class JournalDelivery implements NodeOutbox.Callback {
+
+        private final OutboundJournal journal;
+        private final OutboundJournal.Entry entry;
+
+        JournalDelivery(@NonNull OutboundJournal journal, @NonNull OutboundJournal.Entry entry) {
+            this.journal = journal;
+            this.entry = entry;
+        }
+
+        @Override
+        public void onComplete(@NonNull String nodeId, boolean sent) {
+            journal.onSent(entry, nodeId, sent);
+        }
+    }
+}
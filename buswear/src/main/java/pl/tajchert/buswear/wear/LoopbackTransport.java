@@ -0,0 +1,145 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * In-process transport connecting two EventBus instances, without any device or Google Play Services. Messages are
+ * delivered to the other end on its own receiving thread, in the order they were sent, just like EventCatcher does.
+ * Useful for benchmarking and testing the whole send and receive pipeline. {@link #setConnected(boolean)} simulates
+ * the two ends losing and regaining their connection.
+ */
+public class LoopbackTransport implements RemoteTransport {
+
+    private final String nodeId;
+    private final ExecutorService receiveExecutor;
+    //Shared by both ends
+    private final Object pairLock;
+    private LoopbackTransport peer;
+    private volatile OnMessageReceivedListener listener;
+    private volatile OnNodesChangedListener nodesListener;
+    private volatile boolean connected = true;
+
+    private LoopbackTransport(@NonNull final String nodeId, @NonNull Object pairLock) {
+        this.nodeId = nodeId;
+        this.pairLock = pairLock;
+        this.receiveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "BusWear-Loopback-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates two connected ends, pass each one to its own EventBus.
+     *
+     * @return two transports, messages sent by one are received by the other
+     */
+    @NonNull
+    public static LoopbackTransport[] createPair() {
+        Object pairLock = new Object();
+        LoopbackTransport first = new LoopbackTransport("loopback-1", pairLock);
+        LoopbackTransport second = new LoopbackTransport("loopback-2", pairLock);
+        first.peer = second;
+        second.peer = first;
+        return new LoopbackTransport[]{first, second};
+    }
+
+    @NonNull
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Disconnects or reconnects both ends, each of them tells its nodes listener that the other end went away or came
+     * back. Messages sent while disconnected are dropped.
+     *
+     * @param connected false to disconnect
+     */
+    public void setConnected(boolean connected) {
+        synchronized (pairLock) {
+            if (this.connected == connected) {
+                return;
+            }
+            this.connected = connected;
+            peer.connected = connected;
+        }
+        onConnectionChanged(peer.nodeId, connected);
+        peer.onConnectionChanged(nodeId, connected);
+    }
+
+    @Override
+    public void send(@NonNull String path, @NonNull byte[] data) {
+        if (connected) {
+            peer.receive(nodeId, path, data);
+        }
+    }
+
+    @Override
+    public void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+        if (connected && nodeId.equals(peer.nodeId)) {
+            peer.receive(this.nodeId, path, data);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Collection<String> getConnectedNodeIds() {
+        return connected ? Collections.singletonList(peer.nodeId) : Collections.<String>emptyList();
+    }
+
+    @Override
+    public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+        this.nodesListener = listener;
+    }
+
+    @Override
+    public void release() {
+        listener = null;
+        nodesListener = null;
+    }
+
+    private void onConnectionChanged(@NonNull final String otherNodeId, final boolean connected) {
+        //Same thread as received messages, so they stay in order with the change
+        receiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OnNodesChangedListener current = nodesListener;
+                if (current == null) {
+                    return;
+                }
+                if (connected) {
+                    current.onNodeConnected(otherNodeId);
+                } else {
+                    current.onNodeDisconnected(otherNodeId);
+                }
+            }
+        });
+    }
+
+    private void receive(@NonNull final String sourceNodeId, @NonNull final String path, @NonNull final byte[] data) {
+        receiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OnMessageReceivedListener current = listener;
+                if (current != null) {
+                    current.onMessageReceived(sourceNodeId, path, data);
+                }
+            }
+        });
+    }
+}
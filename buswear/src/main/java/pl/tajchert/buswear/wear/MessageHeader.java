@@ -0,0 +1,425 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed binary header in front of every BusWear message, the receiving side dispatches on its kind alone:
+ * <pre>
+ * magic (2) | protocol version (1) | kind (1) | flags (1) | format (1) | type id (4) | sequence number (4) | epoch (4)
+ * </pre>
+ * Format tells how the event was encoded, one of {@link EventCodecs} formats.
+ * Type id comes from {@link WearTypeRegistry}, for classes without registered id it is 0, {@link #FLAG_TYPE_NAME}
+ * is set and the header is followed by the length and UTF-8 bytes of the class name. With {@link #FLAG_DEFLATED}
+ * everything after the fixed header is compressed with {@link PayloadCompression}. Sequence number identifies the
+ * message among messages of its sender, it grows by one with every message written by the process. Epoch is chosen
+ * randomly when the process starts, so sequence numbers starting over after a restart are not mistaken for
+ * duplicates by {@link DuplicateFilter}. {@link #FLAG_ACK_REQUESTED} asks the receiver to reply with a
+ * {@link #KIND_ACK} carrying its sequence number and epoch. {@link #KIND_REQUEST} is an event waiting for a reply,
+ * {@link #KIND_RESPONSE} payload starts with sequence number and epoch of the request it answers.
+ * <p/>
+ * Kinds unknown to the receiver are ignored, so new kinds can be added without breaking older peers. Protocol version
+ * only changes when the fixed header itself changes, messages with a newer version are dropped.
+ */
+public class MessageHeader {
+
+    public static final byte PROTOCOL_VERSION = 1;
+    public static final int SIZE = 18;
+
+    private static final byte MAGIC_0 = (byte) 0xB5;
+    private static final byte MAGIC_1 = (byte) 0x57;
+
+    public static final byte KIND_EVENT = 1;
+    public static final byte KIND_STICKY_EVENT = 2;
+    public static final byte KIND_REMOVE_STICKY_CLASS = 3;
+    public static final byte KIND_REMOVE_STICKY_EVENT = 4;
+    public static final byte KIND_REMOVE_ALL_STICKY = 5;
+    public static final byte KIND_BATCH = 6;
+    public static final byte KIND_INTEREST = 7;
+    public static final byte KIND_ACK = 8;
+    public static final byte KIND_REQUEST = 9;
+    public static final byte KIND_RESPONSE = 10;
+
+    public static final byte FLAG_DEFLATED = 1;
+    public static final byte FLAG_TYPE_NAME = 1 << 1;
+    public static final byte FLAG_ACK_REQUESTED = 1 << 2;
+
+    private static final int OFFSET_VERSION = 2;
+    private static final int OFFSET_KIND = 3;
+    private static final int OFFSET_FLAGS = 4;
+    private static final int OFFSET_FORMAT = 5;
+    private static final int OFFSET_TYPE_ID = 6;
+    private static final int OFFSET_SEQUENCE = 10;
+    private static final int OFFSET_EPOCH = 14;
+
+    private static final AtomicInteger nextSequence = new AtomicInteger();
+    private static final int processEpoch = createEpoch();
+
+    //UTF-8 names of classes sent without id, so they are not encoded for every message
+    private static final Map<Class<?>, byte[]> classNames = new ConcurrentHashMap<Class<?>, byte[]>();
+
+    public final byte kind;
+    public final byte flags;
+    public final byte format;
+    public final int sequence;
+    public final int epoch;
+    //Null for kinds without a type
+    @Nullable
+    public final String className;
+    //Set when the class was resolved from its id
+    @Nullable
+    public final Class<?> type;
+    //Node the message was received from, null if not known
+    @Nullable
+    public final String sourceNodeId;
+    //Received message, or its inflated body for deflated messages
+    private final byte[] message;
+    private final int payloadOffset;
+
+    private MessageHeader(byte kind, byte flags, byte format, int sequence, int epoch, @Nullable String className, @Nullable Class<?> type,
+                          @Nullable String sourceNodeId, @NonNull byte[] message, int payloadOffset) {
+        this.kind = kind;
+        this.flags = flags;
+        this.format = format;
+        this.sequence = sequence;
+        this.epoch = epoch;
+        this.className = className;
+        this.type = type;
+        this.sourceNodeId = sourceNodeId;
+        this.message = message;
+        this.payloadOffset = payloadOffset;
+    }
+
+    public boolean isAckRequested() {
+        return (flags & FLAG_ACK_REQUESTED) != 0;
+    }
+
+    /**
+     * Returns header of the same message with the first bytes of the payload skipped, for kinds carrying own fields
+     * in front of the event
+     */
+    @NonNull
+    public MessageHeader skipPayload(int length) {
+        return new MessageHeader(kind, flags, format, sequence, epoch, className, type, sourceNodeId, message, payloadOffset + length);
+    }
+
+    /**
+     * Copies the payload following the header, only call it once the event is going to be decoded
+     */
+    @NonNull
+    public byte[] getPayload() {
+        return Arrays.copyOfRange(message, payloadOffset, message.length);
+    }
+
+    /**
+     * Whole received message, payload starts at {@link #getPayloadOffset()}. Lets simple types and Parcels be read
+     * in place without {@link #getPayload()} copy
+     */
+    @NonNull
+    public byte[] getMessage() {
+        return message;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return message.length - payloadOffset;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns message of given kind and class with the payload after the header
+     *
+     * @param type   class of the event, null for kinds without a type
+     * @param format format the payload was encoded with, {@link EventCodecs#FORMAT_NONE} for no event
+     */
+    @NonNull
+    public static byte[] write(byte kind, @Nullable Class<?> type, byte format, @NonNull byte[] payload) {
+        byte[] message = allocate(kind, type, format, payload.length);
+        System.arraycopy(payload, 0, message, message.length - payload.length, payload.length);
+        return message;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns message with the header already written, followed by room for the payload at its end, so payloads can
+     * be written straight into the message
+     *
+     * @param type   class of the event, null for kinds without a type
+     * @param format format the payload is encoded with, {@link EventCodecs#FORMAT_NONE} for no event
+     */
+    @NonNull
+    public static byte[] allocate(byte kind, @Nullable Class<?> type, byte format, int payloadLength) {
+        Integer typeId = type == null ? null : WearTypeRegistry.getRegisteredId(type);
+        byte[] name = null;
+        if (type != null && (typeId == null || typeId == 0)) {
+            name = getClassName(type);
+        }
+
+        byte[] message = new byte[SIZE + (name == null ? 0 : 2 + name.length) + payloadLength];
+        message[0] = MAGIC_0;
+        message[1] = MAGIC_1;
+        message[OFFSET_VERSION] = PROTOCOL_VERSION;
+        message[OFFSET_KIND] = kind;
+        message[OFFSET_FORMAT] = format;
+        writeInt(message, OFFSET_SEQUENCE, nextSequence.incrementAndGet());
+        writeInt(message, OFFSET_EPOCH, processEpoch);
+        if (name != null) {
+            message[OFFSET_FLAGS] = FLAG_TYPE_NAME;
+            message[SIZE] = (byte) (name.length >>> 8);
+            message[SIZE + 1] = (byte) name.length;
+            System.arraycopy(name, 0, message, SIZE + 2, name.length);
+        } else if (typeId != null) {
+            writeInt(message, OFFSET_TYPE_ID, typeId);
+        }
+        return message;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns copy of the message with everything after the fixed header replaced by compressed body, created by
+     * {@link PayloadCompression#compress(byte[], int, int)} from the same range
+     */
+    @NonNull
+    public static byte[] withDeflatedBody(@NonNull byte[] message, @NonNull byte[] deflatedBody) {
+        byte[] deflated = new byte[SIZE + deflatedBody.length];
+        System.arraycopy(message, 0, deflated, 0, SIZE);
+        deflated[OFFSET_FLAGS] |= FLAG_DEFLATED;
+        System.arraycopy(deflatedBody, 0, deflated, SIZE, deflatedBody.length);
+        return deflated;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns type id of the written message
+     *
+     * @return id, 0 if the message carries the class name or has no type
+     */
+    public static int getTypeId(@NonNull byte[] message) {
+        return readInt(message, OFFSET_TYPE_ID);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns copy of a message written with a type id, not deflated yet, carrying the class name instead. Everything
+     * else, sequence number included, stays the same.
+     *
+     * @return copy of the message, or the message itself if it has no type id or the id is not known here
+     */
+    @NonNull
+    public static byte[] withTypeName(@NonNull byte[] message) {
+        int typeId = getTypeId(message);
+        Class<?> type = typeId == 0 ? null : WearTypeRegistry.getType(typeId);
+        if (type == null || (message[OFFSET_FLAGS] & (FLAG_TYPE_NAME | FLAG_DEFLATED)) != 0) {
+            return message;
+        }
+        byte[] name = getClassName(type);
+        byte[] named = new byte[message.length + 2 + name.length];
+        System.arraycopy(message, 0, named, 0, SIZE);
+        writeInt(named, OFFSET_TYPE_ID, 0);
+        named[OFFSET_FLAGS] |= FLAG_TYPE_NAME;
+        named[SIZE] = (byte) (name.length >>> 8);
+        named[SIZE + 1] = (byte) name.length;
+        System.arraycopy(name, 0, named, SIZE + 2, name.length);
+        System.arraycopy(message, SIZE, named, SIZE + 2 + name.length, message.length - SIZE);
+        return named;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Sets {@link #FLAG_ACK_REQUESTED} in the written message
+     *
+     * @return sequence number the acknowledgement will carry
+     */
+    public static int requestAck(@NonNull byte[] message) {
+        message[OFFSET_FLAGS] |= FLAG_ACK_REQUESTED;
+        return readInt(message, OFFSET_SEQUENCE);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns sequence number of the written message
+     */
+    public static int getSequence(@NonNull byte[] message) {
+        return readInt(message, OFFSET_SEQUENCE);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns epoch of the written message
+     */
+    public static int getEpoch(@NonNull byte[] message) {
+        return readInt(message, OFFSET_EPOCH);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns where the payload of a written message not deflated yet starts
+     */
+    public static int getPayloadOffset(@NonNull byte[] message) {
+        if ((message[OFFSET_FLAGS] & FLAG_TYPE_NAME) == 0) {
+            return SIZE;
+        }
+        return SIZE + 2 + ((message[SIZE] & 0xFF) << 8 | (message[SIZE + 1] & 0xFF));
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks if the message starts with a BusWear header
+     */
+    public static boolean isMessage(@NonNull byte[] message) {
+        return message.length >= SIZE && message[0] == MAGIC_0 && message[1] == MAGIC_1;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns class of the message without inflating or decoding it
+     *
+     * @return class or null for malformed messages, kinds without a type and deflated messages sent with class name
+     */
+    @Nullable
+    public static Class<?> peekType(@NonNull byte[] message) {
+        if (!isMessage(message)) {
+            return null;
+        }
+        byte flags = message[OFFSET_FLAGS];
+        if ((flags & FLAG_TYPE_NAME) == 0) {
+            int typeId = readInt(message, OFFSET_TYPE_ID);
+            return typeId == 0 ? null : WearTypeRegistry.getType(typeId);
+        }
+        if ((flags & FLAG_DEFLATED) != 0 || message.length < SIZE + 2) {
+            return null;
+        }
+        int nameLength = (message[SIZE] & 0xFF) << 8 | (message[SIZE + 1] & 0xFF);
+        if (message.length < SIZE + 2 + nameLength) {
+            return null;
+        }
+        return WearTypeRegistry.forName(fromUtf8(message, SIZE + 2, nameLength));
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns kind of a message checked with {@link #isMessage(byte[])}
+     */
+    public static byte peekKind(@NonNull byte[] message) {
+        return message[OFFSET_KIND];
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Reads the header written by {@link #write(byte, Class, byte, byte[])}, inflating the message if needed
+     *
+     * @param sourceNodeId node the message came from, if known
+     * @return header or null if it is malformed, from a newer protocol or its type id is unknown on this side
+     */
+    @Nullable
+    public static MessageHeader read(@Nullable String sourceNodeId, @NonNull byte[] message) {
+        if (!isMessage(message)) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed message header");
+            return null;
+        }
+        if (message[OFFSET_VERSION] > PROTOCOL_VERSION) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, message from newer BusWear protocol " + message[OFFSET_VERSION] + ", update BusWear");
+            return null;
+        }
+
+        byte kind = message[OFFSET_KIND];
+        byte flags = message[OFFSET_FLAGS];
+        byte format = message[OFFSET_FORMAT];
+        int typeId = readInt(message, OFFSET_TYPE_ID);
+        int sequence = readInt(message, OFFSET_SEQUENCE);
+        int messageEpoch = readInt(message, OFFSET_EPOCH);
+
+        byte[] body = message;
+        int offset = SIZE;
+        if ((flags & FLAG_DEFLATED) != 0) {
+            body = PayloadCompression.decompress(message, SIZE, message.length - SIZE);
+            if (body == null) {
+                return null;
+            }
+            offset = 0;
+        }
+
+        if ((flags & FLAG_TYPE_NAME) != 0) {
+            if (body.length < offset + 2) {
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed message header");
+                return null;
+            }
+            int nameLength = (body[offset] & 0xFF) << 8 | (body[offset + 1] & 0xFF);
+            if (body.length < offset + 2 + nameLength) {
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed message header");
+                return null;
+            }
+            String className = fromUtf8(body, offset + 2, nameLength);
+            return new MessageHeader(kind, flags, format, sequence, messageEpoch, className, null, sourceNodeId, body, offset + 2 + nameLength);
+        }
+
+        if (typeId != 0) {
+            Class<?> type = WearTypeRegistry.getType(typeId);
+            if (type == null) {
+                //Senders only use ids this side advertised, this one was forgotten or the sender is misbehaving
+                Log.e(WearBusTools.BUSWEAR_TAG, "syncEvent, dropped message with unknown type id " + typeId + ", register the event class with WearTypeRegistry");
+                return null;
+            }
+            return new MessageHeader(kind, flags, format, sequence, messageEpoch, type.getName(), type, sourceNodeId, body, offset);
+        }
+        return new MessageHeader(kind, flags, format, sequence, messageEpoch, null, null, sourceNodeId, body, offset);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public static void writeInt(@NonNull byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public static int readInt(@NonNull byte[] array, int offset) {
+        return (array[offset] & 0xFF) << 24 | (array[offset + 1] & 0xFF) << 16 | (array[offset + 2] & 0xFF) << 8 | (array[offset + 3] & 0xFF);
+    }
+
+    @NonNull
+    private static byte[] getClassName(@NonNull Class<?> type) {
+        byte[] name = classNames.get(type);
+        if (name == null) {
+            name = toUtf8(type.getName());
+            classNames.put(type, name);
+        }
+        return name;
+    }
+
+    private static int createEpoch() {
+        return new Random().nextInt();
+    }
+
+    private static byte[] toUtf8(@NonNull String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+
+    private static String fromUtf8(@NonNull byte[] array, int offset, int length) {
+        try {
+            return new String(array, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return new String(array, offset, length);
+        }
+    }
+}
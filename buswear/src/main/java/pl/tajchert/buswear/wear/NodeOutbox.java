@@ -0,0 +1,287 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound queue of a single node, with its own worker thread sending one message at a time. A node that is slow or
+ * out of range only backs up its own queue, other nodes keep receiving. Once the queue is full the
+ * {@link OverflowPolicy} decides what happens. Worker thread stops after a while without messages.
+ * <p/>
+ * Failed messages are sent again as {@link RetryPolicy} says, waiting on the worker thread of the node. Its
+ * {@link CircuitBreaker} makes messages fail right away once the node keeps failing.
+ */
+public class NodeOutbox {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final long IDLE_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Longest a BLOCK offer waits for room, offers run on the single OutboundDispatcher thread shared by all nodes
+     */
+    static final long MAX_BLOCK_MS = 500;
+
+    public enum OverflowPolicy {
+        /**
+         * Oldest waiting message is dropped to make room, best for state events where only recent values matter
+         */
+        DROP_OLDEST,
+        /**
+         * New message is dropped
+         */
+        DROP_NEWEST,
+        /**
+         * Sending thread waits for room up to {@link #MAX_BLOCK_MS}, which holds back other nodes too, then the
+         * oldest waiting message is dropped as with DROP_OLDEST
+         */
+        BLOCK
+    }
+
+    public interface Sender {
+        /**
+         * Sends the message to the node, blocking until it is sent or failed. Called on the worker thread of the node.
+         *
+         * @return true if the message was sent
+         */
+        boolean send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data);
+    }
+
+    public interface Callback {
+        /**
+         * Called once for every queued message, on the worker thread of the node after sending or on the offering
+         * thread if the message was dropped
+         *
+         * @param sent false if sending failed or the message was dropped
+         */
+        void onComplete(@NonNull String nodeId, boolean sent);
+    }
+
+    private final String nodeId;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Sender sender;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    public NodeOutbox(@NonNull final String nodeId, int capacity, @NonNull OverflowPolicy overflowPolicy, @NonNull Sender sender) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.nodeId = nodeId;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.sender = sender;
+        this.executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "BusWear-Node-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Queues the message behind messages queued for this node before it
+     *
+     * @return false if the message was dropped
+     */
+    public boolean offer(@NonNull String path, @NonNull byte[] data) {
+        return offer(path, data, null);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Queues the message behind messages queued for this node before it
+     *
+     * @param callback told whether the message was sent, also when it gets dropped
+     * @return false if the message was dropped
+     */
+    public boolean offer(@NonNull String path, @NonNull byte[] data, @Nullable Callback callback) {
+        Message task = new Message(path, data, callback);
+        OverflowPolicy policy = overflowPolicy;
+
+        while (true) {
+            try {
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                if (executor.isShutdown()) {
+                    task.complete(false);
+                    return false;
+                }
+                switch (policy) {
+                    case DROP_OLDEST:
+                        Runnable oldest = executor.getQueue().poll();
+                        if (oldest != null) {
+                            onDropped();
+                            ((Message) oldest).complete(false);
+                        }
+                        //Try again with room made
+                        break;
+                    case BLOCK:
+                        try {
+                            if (executor.getQueue().offer(task, MAX_BLOCK_MS, TimeUnit.MILLISECONDS)) {
+                                if (executor.isShutdown() && executor.getQueue().remove(task)) {
+                                    task.complete(false);
+                                    return false;
+                                }
+                                //Worker might have timed out just before, make sure one takes the task
+                                executor.prestartCoreThread();
+                                return true;
+                            }
+                            //Node is not keeping up, stop holding back the other nodes
+                            policy = OverflowPolicy.DROP_OLDEST;
+                            break;
+                        } catch (InterruptedException interrupted) {
+                            Thread.currentThread().interrupt();
+                            onDropped();
+                            task.complete(false);
+                            return false;
+                        }
+                    default:
+                        onDropped();
+                        task.complete(false);
+                        return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Messages already queued are still sent, later ones fail right away
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    @NonNull
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    private boolean sendWithRetry(@NonNull String path, @NonNull byte[] data) {
+        RetryPolicy policy = retryPolicy;
+        for (int attempt = 1; ; attempt++) {
+            if (!circuitBreaker.allowAttempt()) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            if (sender.send(nodeId, path, data)) {
+                circuitBreaker.onSuccess();
+                return true;
+            }
+            circuitBreaker.onFailure();
+            if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                Log.e(WearBusTools.BUSWEAR_TAG, "Node " + nodeId + " keeps failing, not sending to it for a while");
+                return false;
+            }
+            if (attempt >= policy.getMaxAttempts()) {
+                return false;
+            }
+
+            retriedCount.incrementAndGet();
+            try {
+                Thread.sleep(policy.getDelayMs(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void onDropped() {
+        droppedCount.incrementAndGet();
+        Log.e(WearBusTools.BUSWEAR_TAG, "Outbound queue of node " + nodeId + " is full (" + capacity + "), message dropped");
+    }
+
+    @NonNull
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return number of messages waiting to be sent to the node, not counting the one currently being sent
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of messages for the node dropped because its queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of attempts made again after a failed one
+     */
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * @return number of messages failed without an attempt because the circuit breaker was open
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private class Message implements Runnable {
+
+        private final String path;
+        private final byte[] data;
+        @Nullable
+        private final Callback callback;
+
+        Message(@NonNull String path, @NonNull byte[] data, @Nullable Callback callback) {
+            this.path = path;
+            this.data = data;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            boolean sent = false;
+            try {
+                sent = sendWithRetry(path, data);
+            } finally {
+                complete(sent);
+            }
+        }
+
+        void complete(boolean sent) {
+            if (callback != null) {
+                callback.onComplete(nodeId, sent);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory snapshot of the connected nodes. It is populated with a single NodeApi query and then kept up to date
+ * by peer connected/disconnected callbacks, so sending an event does not need to ask Google Play Services for nodes.
+ * Callbacks come both from the NodeApi listener and from {@link EventCatcher}, listeners are only told about changes
+ * of the snapshot, so each peer change reaches them once.
+ */
+public class NodeRegistry implements NodeApi.NodeListener {
+
+    public interface OnNodesChangedListener {
+        /**
+         * Called on the thread delivering NodeApi callbacks, it should only hand the work off
+         */
+        void onNodeConnected(@NonNull String nodeId);
+
+        void onNodeDisconnected(@NonNull String nodeId);
+    }
+
+    private static NodeRegistry instance;
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns the registry shared by all EventBus instances
+     */
+    public static NodeRegistry getInstance() {
+        if (instance == null) {
+            synchronized (NodeRegistry.class) {
+                if (instance == null) {
+                    instance = new NodeRegistry();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final Object initLock = new Object();
+    private final Object lock = new Object();
+    private volatile List<Node> nodes = Collections.emptyList();
+    private volatile boolean initialized;
+    //Guarded by initLock, the listener lives as long as the client connection it was added with
+    private boolean listening;
+    private final List<OnNodesChangedListener> listeners = new CopyOnWriteArrayList<OnNodesChangedListener>();
+
+    private NodeRegistry() {
+    }
+
+    /**
+     * Returns connected nodes, the first call registers the listener and queries NodeApi so it needs to be made off
+     * the main thread with a connected client. Every following call only reads the cached snapshot.
+     *
+     * @param googleApiClient connected client
+     * @return unmodifiable snapshot of connected nodes
+     */
+    @NonNull
+    public List<Node> getConnectedNodes(@NonNull GoogleApiClient googleApiClient) {
+        if (!initialized) {
+            synchronized (initLock) {
+                if (!initialized) {
+                    initialize(googleApiClient);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns connected nodes without querying NodeApi
+     *
+     * @return unmodifiable snapshot of connected nodes, empty until {@link #getConnectedNodes(GoogleApiClient)} was
+     * called
+     */
+    @NonNull
+    public List<Node> getKnownNodes() {
+        return nodes;
+    }
+
+    /**
+     * Drops the cached nodes, next {@link #getConnectedNodes(GoogleApiClient)} will query NodeApi again. Needed once
+     * the client loses its connection as the listener is removed together with it.
+     */
+    public void invalidate() {
+        synchronized (initLock) {
+            initialized = false;
+            listening = false;
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Listener is only called once the registry was populated by {@link #getConnectedNodes(GoogleApiClient)}
+     */
+    public void addOnNodesChangedListener(@NonNull OnNodesChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public void removeOnNodesChangedListener(@NonNull OnNodesChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void initialize(@NonNull GoogleApiClient googleApiClient) {
+        //Listen first, so peers connecting while the query runs are not missed. A failed query is retried on the next
+        //call with the listener already in place
+        if (!listening) {
+            Wearable.NodeApi.addListener(googleApiClient, this);
+            listening = true;
+        }
+        NodeApi.GetConnectedNodesResult result = Wearable.NodeApi.getConnectedNodes(googleApiClient).await();
+        if (result.getStatus().isSuccess()) {
+            synchronized (lock) {
+                nodes = Collections.unmodifiableList(new ArrayList<Node>(result.getNodes()));
+            }
+            initialized = true;
+        } else {
+            Log.d(WearBusTools.BUSWEAR_TAG, "NodeRegistry, cannot get connected nodes: " + result.getStatus().getStatusCode());
+        }
+    }
+
+    @Override
+    public void onPeerConnected(Node node) {
+        synchronized (lock) {
+            if (indexOf(node.getId()) >= 0) {
+                //Already reported by the other source
+                return;
+            }
+            List<Node> updated = new ArrayList<Node>(nodes);
+            updated.add(node);
+            nodes = Collections.unmodifiableList(updated);
+        }
+        for (OnNodesChangedListener listener : listeners) {
+            listener.onNodeConnected(node.getId());
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(Node node) {
+        synchronized (lock) {
+            int index = indexOf(node.getId());
+            if (index < 0) {
+                return;
+            }
+            List<Node> updated = new ArrayList<Node>(nodes);
+            updated.remove(index);
+            nodes = Collections.unmodifiableList(updated);
+        }
+        for (OnNodesChangedListener listener : listeners) {
+            listener.onNodeDisconnected(node.getId());
+        }
+    }
+
+    private int indexOf(@NonNull String nodeId) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).getId().equals(nodeId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer that executes every outbound BusWear task (events and sticky commands) in the order it was
+ * submitted. Work is kept in a bounded queue, once it is full new tasks are dropped instead of piling up threads.
+ */
+public class OutboundDispatcher {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private static OutboundDispatcher instance;
+
+    /**
+     * Set the capacity of the outbound queue. This must be set before any EventBus methods, usually in the
+     * application class.
+     *
+     * @param capacity maximum number of tasks waiting to be sent
+     */
+    public static void setQueueCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        queueCapacity = capacity;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns the dispatcher shared by all EventBus instances
+     */
+    public static OutboundDispatcher getInstance() {
+        if (instance == null) {
+            synchronized (OutboundDispatcher.class) {
+                if (instance == null) {
+                    instance = new OutboundDispatcher(queueCapacity);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int capacity;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private OutboundDispatcher(int capacity) {
+        this.capacity = capacity;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "BusWear-Outbound");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues the task behind every task submitted before it.
+     *
+     * @param task
+     * @return false if the queue is full and the task was dropped
+     */
+    public boolean submit(@NonNull Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            droppedCount.incrementAndGet();
+            Log.e(WearBusTools.BUSWEAR_TAG, "Outbound queue is full (" + capacity + "), message dropped");
+            return false;
+        }
+    }
+
+    /**
+     * @return number of tasks waiting to be sent, not counting the one currently being sent
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of tasks dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,427 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in durable outbound queue, an append-only journal file mapped into memory. Messages stay in it until every node
+ * connected at the time they were first sent received them, so events sent while no node is connected, or still in
+ * flight when the process dies, are sent again once a node connects. Delivery is tracked per node, a message is only
+ * sent again to nodes which did not receive it, so one failing node does not make the others get it again. Nodes
+ * still waiting for a message are only known to the process, after a restart unsent messages go to every connected
+ * node. Writes to the mapping survive death of the process without syncing the file.
+ * <p/>
+ * Each record is written first and committed by writing its length last, a record cut short by process death is not
+ * read back. Sent records are only marked, the file is rewritten without them when it fills up or when most of it is
+ * taken by sent records, or simply started over once nothing is left to send.
+ * <pre>
+ * magic (4) | record... | 0
+ * record: length (4) | state (1) | path length (2) | path | message
+ * </pre>
+ * {@link Retention} decides per event class which messages are kept, messages of classes without own retention use
+ * the default one. Interest advertisements are never kept, they are sent again on every connection anyway.
+ */
+public class OutboundJournal {
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int MAGIC = 0x42574a31;
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final byte STATE_LIVE = 1;
+    private static final byte STATE_SENT = 2;
+
+    public enum Retention {
+        /**
+         * Messages are not kept, they are only sent to nodes connected at the time
+         */
+        NONE,
+        /**
+         * Only the newest unsent message of the class is kept, best for state events where only the current value
+         * matters
+         */
+        KEEP_LATEST,
+        /**
+         * Every unsent message is kept and sent in order
+         */
+        KEEP_ALL
+    }
+
+    public static class Entry {
+        @NonNull
+        public final String path;
+        @NonNull
+        public final byte[] data;
+        //Nodes the message is handed out to, each of them needs to be reported to onSent
+        @NonNull
+        public final Collection<String> nodeIds;
+        private final int position;
+
+        private Entry(@NonNull String path, @NonNull byte[] data, @NonNull Collection<String> nodeIds, int position) {
+            this.path = path;
+            this.data = data;
+            this.nodeIds = nodeIds;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Unsent record with the nodes it is still meant for
+     */
+    private static class Record {
+        @Nullable
+        final Class<?> type;
+        //Null until the record is handed out the first time, then nodes which did not receive it yet
+        @Nullable
+        Set<String> pendingNodes;
+        final Set<String> sendingNodes = new HashSet<String>();
+
+        Record(@Nullable Class<?> type) {
+            this.type = type;
+        }
+    }
+
+    private final File file;
+    private final int capacity;
+    private final Map<Class<?>, Retention> retentions = new ConcurrentHashMap<Class<?>, Retention>();
+    private volatile Retention defaultRetention = Retention.KEEP_ALL;
+
+    //Everything below is guarded by this
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private int sentBytes;
+    //Unsent records in file order
+    private Map<Integer, Record> unsent = new LinkedHashMap<Integer, Record>();
+    //Records being sent to any node
+    private int sendingCount;
+    private final Map<Class<?>, Integer> latestByType = new HashMap<Class<?>, Integer>();
+
+    public OutboundJournal(@NonNull File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the journal, unsent messages left by a previous process are sent with the next message or when a node
+     * connects
+     *
+     * @param file     journal file, created if needed
+     * @param capacity size of the file in bytes, messages which do not fit are sent without being kept
+     * @throws IOException if the file cannot be opened and mapped
+     */
+    public OutboundJournal(@NonNull File file, int capacity) throws IOException {
+        if (capacity < HEADER_SIZE + RECORD_HEADER_SIZE + 4) {
+            throw new IllegalArgumentException("Journal capacity is too small");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        synchronized (this) {
+            open();
+            load();
+        }
+    }
+
+    /**
+     * Sets retention of messages of the class, it is not inherited by subclasses
+     */
+    public void setRetention(@NonNull Class<?> type, @NonNull Retention retention) {
+        retentions.put(type, retention);
+    }
+
+    /**
+     * Sets retention of messages of classes without own retention, of sticky removals of all classes and of batches,
+     * {@link Retention#KEEP_ALL} if not set
+     */
+    public void setDefaultRetention(@NonNull Retention retention) {
+        defaultRetention = retention;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Appends the message unless its retention is {@link Retention#NONE}, for {@link Retention#KEEP_LATEST} the
+     * unsent message of the same class is dropped unless it is being sent
+     *
+     * @return true if the message was kept and will be returned by {@link #takeUnsent(Collection)}
+     */
+    public synchronized boolean append(@NonNull String path, @NonNull byte[] message) {
+        if (!MessageHeader.isMessage(message) || MessageHeader.peekKind(message) == MessageHeader.KIND_INTEREST) {
+            return false;
+        }
+        Class<?> type = MessageHeader.peekType(message);
+        Retention retention = getRetention(type);
+        if (retention == Retention.NONE) {
+            return false;
+        }
+
+        byte[] pathBytes = toUtf8(path);
+        int size = RECORD_HEADER_SIZE + 2 + pathBytes.length + message.length;
+        if (!hasRoom(size)) {
+            compactIfIdle();
+            if (!hasRoom(size)) {
+                Log.e(WearBusTools.BUSWEAR_TAG, "Outbound journal is full, message of " + message.length + " bytes is sent without being kept");
+                return false;
+            }
+        }
+
+        if (retention == Retention.KEEP_LATEST && type != null) {
+            Integer previous = latestByType.get(type);
+            Record record = previous == null ? null : unsent.get(previous);
+            if (record != null && record.sendingNodes.isEmpty()) {
+                markSent(previous);
+            }
+        }
+
+        int position = writePosition;
+        //Invalidate whatever a previous round left here before writing, the length commits the record at the end
+        buffer.putInt(position, 0);
+        buffer.putInt(position + size, 0);
+        buffer.put(position + 4, STATE_LIVE);
+        buffer.putShort(position + RECORD_HEADER_SIZE, (short) pathBytes.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + RECORD_HEADER_SIZE + 2);
+        target.put(pathBytes);
+        target.put(message);
+        buffer.putInt(position, size - RECORD_HEADER_SIZE);
+
+        writePosition = position + size;
+        unsent.put(position, new Record(type));
+        if (type != null) {
+            latestByType.put(type, position);
+        }
+        return true;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns unsent messages in the order they were appended, each with the given nodes which did not receive it and
+     * are not being sent it already. A message handed out the first time is meant for all the given nodes. Every node
+     * of every entry needs to be reported to {@link #onSent(Entry, String, boolean)}.
+     *
+     * @param connectedNodeIds nodes connected now
+     */
+    @NonNull
+    public synchronized List<Entry> takeUnsent(@NonNull Collection<String> connectedNodeIds) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (connectedNodeIds.isEmpty()) {
+            return entries;
+        }
+        for (Map.Entry<Integer, Record> unsentRecord : unsent.entrySet()) {
+            Record record = unsentRecord.getValue();
+            if (record.pendingNodes == null) {
+                record.pendingNodes = new HashSet<String>(connectedNodeIds);
+            }
+            List<String> nodeIds = new ArrayList<String>();
+            for (String nodeId : connectedNodeIds) {
+                if (record.pendingNodes.contains(nodeId) && !record.sendingNodes.contains(nodeId)) {
+                    nodeIds.add(nodeId);
+                }
+            }
+            if (nodeIds.isEmpty()) {
+                continue;
+            }
+            if (record.sendingNodes.isEmpty()) {
+                sendingCount++;
+            }
+            record.sendingNodes.addAll(nodeIds);
+            entries.add(readEntry(unsentRecord.getKey(), nodeIds));
+        }
+        return entries;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Marks the message as received by the node, once all nodes it was meant for received it the message is sent. If
+     * sending failed the node gets it with the next {@link #takeUnsent(Collection)}.
+     */
+    public synchronized void onSent(@NonNull Entry entry, @NonNull String nodeId, boolean sent) {
+        Record record = unsent.get(entry.position);
+        if (record == null || !record.sendingNodes.remove(nodeId)) {
+            return;
+        }
+        if (record.sendingNodes.isEmpty()) {
+            sendingCount--;
+        }
+        if (sent && record.pendingNodes != null) {
+            record.pendingNodes.remove(nodeId);
+        }
+        if (record.pendingNodes == null || !record.pendingNodes.isEmpty() || !record.sendingNodes.isEmpty()) {
+            return;
+        }
+        markSent(entry.position);
+        if (unsent.isEmpty()) {
+            //Nothing left, start over from the beginning
+            buffer.putInt(HEADER_SIZE, 0);
+            writePosition = HEADER_SIZE;
+            sentBytes = 0;
+        } else if (sentBytes > capacity / 2) {
+            compactIfIdle();
+        }
+    }
+
+    /**
+     * @return number of messages kept until they are sent
+     */
+    public synchronized int getUnsentCount() {
+        return unsent.size();
+    }
+
+    @NonNull
+    private Retention getRetention(@Nullable Class<?> type) {
+        Retention retention = type == null ? null : retentions.get(type);
+        return retention != null ? retention : defaultRetention;
+    }
+
+    private boolean hasRoom(int size) {
+        //Room for the terminating zero length too
+        return writePosition + size + 4 <= capacity;
+    }
+
+    private void markSent(int position) {
+        buffer.put(position + 4, STATE_SENT);
+        Class<?> type = unsent.remove(position).type;
+        if (type != null && Integer.valueOf(position).equals(latestByType.get(type))) {
+            latestByType.remove(type);
+        }
+        sentBytes += RECORD_HEADER_SIZE + buffer.getInt(position);
+    }
+
+    @NonNull
+    private Entry readEntry(int position, @NonNull Collection<String> nodeIds) {
+        int length = buffer.getInt(position);
+        int pathLength = buffer.getShort(position + RECORD_HEADER_SIZE) & 0xFFFF;
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + RECORD_HEADER_SIZE + 2);
+        byte[] pathBytes = new byte[pathLength];
+        source.get(pathBytes);
+        byte[] data = new byte[length - 2 - pathLength];
+        source.get(data);
+        return new Entry(fromUtf8(pathBytes), data, nodeIds, position);
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void load() {
+        writePosition = HEADER_SIZE;
+        sentBytes = 0;
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.putInt(0, MAGIC);
+            return;
+        }
+
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE + 2 <= capacity) {
+            int length = buffer.getInt(position);
+            byte state = buffer.get(position + 4);
+            if (length < 2 || position + RECORD_HEADER_SIZE + length > capacity || (state != STATE_LIVE && state != STATE_SENT)) {
+                //Terminator or a record which was not committed
+                break;
+            }
+            if (state == STATE_LIVE) {
+                //Types registered after the journal was opened are not known here, these records are never replaced
+                Class<?> type = MessageHeader.peekType(readEntry(position, Collections.<String>emptyList()).data);
+                unsent.put(position, new Record(type));
+                if (type != null) {
+                    latestByType.put(type, position);
+                }
+            } else {
+                sentBytes += RECORD_HEADER_SIZE + length;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        writePosition = position;
+    }
+
+    private void compactIfIdle() {
+        //Records being sent are referenced by their position, they cannot be moved
+        if (sendingCount > 0 || sentBytes == 0) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.e(WearBusTools.BUSWEAR_TAG, "Outbound journal cannot be compacted: " + e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        //Unsent records are copied to a new file which replaces the journal, an interrupted compaction leaves it intact
+        File compacted = new File(file.getPath() + ".compact");
+        Map<Integer, Record> moved = new LinkedHashMap<Integer, Record>();
+        int position = HEADER_SIZE;
+        RandomAccessFile output = new RandomAccessFile(compacted, "rw");
+        try {
+            output.setLength(0);
+            MappedByteBuffer target = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            for (Map.Entry<Integer, Record> record : unsent.entrySet()) {
+                int size = RECORD_HEADER_SIZE + buffer.getInt(record.getKey());
+                ByteBuffer source = buffer.duplicate();
+                source.position(record.getKey());
+                source.limit(record.getKey() + size);
+                target.position(position);
+                target.put(source);
+                moved.put(position, record.getValue());
+                position += size;
+            }
+            target.putInt(0, MAGIC);
+            target.force();
+        } finally {
+            output.close();
+        }
+
+        randomAccessFile.close();
+        if (!compacted.renameTo(file)) {
+            open();
+            throw new IOException("cannot replace " + file);
+        }
+        open();
+
+        unsent = moved;
+        latestByType.clear();
+        for (Map.Entry<Integer, Record> record : moved.entrySet()) {
+            if (record.getValue().type != null) {
+                latestByType.put(record.getValue().type, record.getKey());
+            }
+        }
+        writePosition = position;
+        sentBytes = 0;
+    }
+
+    private static byte[] toUtf8(@NonNull String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+
+    private static String fromUtf8(@NonNull byte[] array) {
+        try {
+            return new String(array, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return new String(array);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package pl.tajchert.buswear.wear;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recreates received Parcelable events. Each class pays the reflection cost once, its CREATOR field (or Parcel
+ * constructor, for classes without CREATOR) is looked up on first use and cached. Classes that cannot be decoded are
+ * remembered too, so they are not looked up again for every message.
+ */
+public class ParcelableDecoders {
+
+    private static final Object NOT_DECODABLE = new Object();
+
+    //Parcelable.Creator, Constructor or NOT_DECODABLE by class
+    private static final Map<Class<?>, Object> decoders = new ConcurrentHashMap<Class<?>, Object>();
+
+    private ParcelableDecoders() {
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Recreates object of the given class from its marshalled Parcel
+     *
+     * @return object or null if the class cannot be recreated from a Parcel
+     */
+    @Nullable
+    public static Object decode(@NonNull Class<?> type, @NonNull byte[] objectArray) {
+        return decode(type, objectArray, 0, objectArray.length);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Recreates object of the given class from its marshalled Parcel, stored in part of the array
+     *
+     * @return object or null if the class cannot be recreated from a Parcel
+     */
+    @Nullable
+    public static Object decode(@NonNull Class<?> type, @NonNull byte[] objectArray, int offset, int length) {
+        Object decoder = decoders.get(type);
+        if (decoder == null) {
+            decoder = findDecoder(type);
+            decoders.put(type, decoder);
+        }
+        if (decoder == NOT_DECODABLE) {
+            return null;
+        }
+
+        Parcel parcel = WearBusTools.byteToParcel(objectArray, offset, length);
+        try {
+            if (decoder instanceof Parcelable.Creator) {
+                return ((Parcelable.Creator<?>) decoder).createFromParcel(parcel);
+            }
+            return ((Constructor<?>) decoder).newInstance(parcel);
+        } catch (Exception e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent error: " + e.getMessage());
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @NonNull
+    private static Object findDecoder(@NonNull Class<?> type) {
+        try {
+            Field creatorField = type.getField("CREATOR");
+            if (Modifier.isStatic(creatorField.getModifiers())) {
+                Object creator = creatorField.get(null);
+                if (creator instanceof Parcelable.Creator) {
+                    return creator;
+                }
+            }
+        } catch (Exception ignored) {
+            //No usable CREATOR, try the constructor
+        }
+
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor(Parcel.class);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (Exception e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, " + type.getName() + " has neither CREATOR nor Parcel constructor");
+            return NOT_DECODABLE;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message payloads. Deflater and Inflater instances hold native buffers and are expensive to
+ * create, so a few of them are kept and reused. Compressed payload starts with the original length so the receiving
+ * side can inflate it straight into an array of the right size.
+ */
+public class PayloadCompression {
+
+    private static final int POOL_SIZE = 4;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final ArrayDeque<Deflater> deflaterPool = new ArrayDeque<Deflater>(POOL_SIZE);
+    private static final ArrayDeque<Inflater> inflaterPool = new ArrayDeque<Inflater>(POOL_SIZE);
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Compresses the payload
+     *
+     * @return compressed payload or null if compression would not make it smaller
+     */
+    @Nullable
+    public static byte[] compress(@NonNull byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Compresses part of the array
+     *
+     * @return compressed payload or null if compression would not make it smaller
+     */
+    @Nullable
+    public static byte[] compress(@NonNull byte[] data, int offset, int length) {
+        Deflater deflater = obtainDeflater();
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 4);
+            writeInt(out, length);
+            byte[] buffer = new byte[Math.min(length, BUFFER_SIZE) + 64];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+                if (out.size() >= length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            recycle(deflater);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Inflates the payload created by {@link #compress(byte[])}
+     *
+     * @return original payload or null if it is malformed
+     */
+    @Nullable
+    public static byte[] decompress(@NonNull byte[] compressed) {
+        return decompress(compressed, 0, compressed.length);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Inflates the payload created by {@link #compress(byte[], int, int)}, stored in part of the array
+     *
+     * @return original payload or null if it is malformed
+     */
+    @Nullable
+    public static byte[] decompress(@NonNull byte[] compressed, int compressedOffset, int compressedLength) {
+        if (compressedLength < 4) {
+            return null;
+        }
+        int length = readInt(compressed, compressedOffset);
+        if (length < 0 || length > WearBusTools.MAX_STREAM_BYTES) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, compressed payload has wrong size: " + length);
+            return null;
+        }
+
+        Inflater inflater = obtainInflater();
+        try {
+            inflater.setInput(compressed, compressedOffset + 4, compressedLength - 4);
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int count = inflater.inflate(data, offset, length - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != length) {
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, compressed payload is truncated");
+                return null;
+            }
+            return data;
+        } catch (DataFormatException e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, cannot inflate payload: " + e.getMessage());
+            return null;
+        } finally {
+            recycle(inflater);
+        }
+    }
+
+    private static Deflater obtainDeflater() {
+        synchronized (deflaterPool) {
+            Deflater deflater = deflaterPool.poll();
+            if (deflater != null) {
+                return deflater;
+            }
+        }
+        //Bluetooth is slow but watch CPU is too, favour speed over ratio
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    private static void recycle(@NonNull Deflater deflater) {
+        deflater.reset();
+        synchronized (deflaterPool) {
+            if (deflaterPool.size() < POOL_SIZE) {
+                deflaterPool.push(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    private static Inflater obtainInflater() {
+        synchronized (inflaterPool) {
+            Inflater inflater = inflaterPool.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater();
+    }
+
+    private static void recycle(@NonNull Inflater inflater) {
+        inflater.reset();
+        synchronized (inflaterPool) {
+            if (inflaterPool.size() < POOL_SIZE) {
+                inflaterPool.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    private static void writeInt(@NonNull ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,123 @@
+package pl.tajchert.buswear.wear;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in conflation of received events, per event class. Received events of a conflated class are not posted right
+ * away but kept in a slot and posted from the main thread. If a newer event of that class arrives before the older
+ * one was posted, the older one is dropped without being decoded, so a backlog received after reconnecting does not
+ * flood subscribers with stale values.
+ * <p/>
+ * Events and sticky events have separate slots, a sticky event never replaces a regular one or the other way round.
+ */
+public class ReceiveConflation {
+
+    public interface Delivery {
+        /**
+         * Called on the main thread with the newest received message of a conflated class
+         */
+        void deliver(@NonNull MessageHeader header);
+    }
+
+    private final Delivery delivery;
+    private final Set<Class<?>> conflatedTypes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    //Messages waiting to be posted by class, guarded by pendingEvents
+    private final Map<Class<?>, MessageHeader> pendingEvents = new HashMap<Class<?>, MessageHeader>();
+    private final Map<Class<?>, MessageHeader> pendingStickyEvents = new HashMap<Class<?>, MessageHeader>();
+    private final AtomicLong conflatedCount = new AtomicLong();
+    private Handler mainHandler;
+
+    public ReceiveConflation(@NonNull Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public void setConflated(@NonNull Class<?> type, boolean conflated) {
+        if (conflated) {
+            conflatedTypes.add(type);
+        } else {
+            conflatedTypes.remove(type);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public boolean isConflated(@NonNull Class<?> type) {
+        return conflatedTypes.contains(type);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Keeps the received message until the main thread posts it, replacing the older one of the same class
+     *
+     * @return replaced message, it will not be posted
+     */
+    @Nullable
+    public MessageHeader offer(@NonNull final Class<?> type, @NonNull MessageHeader header) {
+        final boolean sticky = header.kind == MessageHeader.KIND_STICKY_EVENT;
+        synchronized (pendingEvents) {
+            Map<Class<?>, MessageHeader> pending = sticky ? pendingStickyEvents : pendingEvents;
+            MessageHeader replaced = pending.put(type, header);
+            if (replaced != null) {
+                //Older one is still waiting, it will be replaced by this one
+                conflatedCount.incrementAndGet();
+                return replaced;
+            }
+            if (mainHandler == null) {
+                mainHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                MessageHeader latest;
+                synchronized (pendingEvents) {
+                    latest = (sticky ? pendingStickyEvents : pendingEvents).remove(type);
+                }
+                if (latest != null) {
+                    delivery.deliver(latest);
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Takes the sticky event of the class waiting to be posted when a sticky removal of that class is received,
+     * drops waiting sticky events of all classes for null
+     *
+     * @return waiting message, always null for all classes
+     */
+    @Nullable
+    public MessageHeader takePendingSticky(@Nullable Class<?> type) {
+        synchronized (pendingEvents) {
+            if (type == null) {
+                pendingStickyEvents.clear();
+                return null;
+            }
+            return pendingStickyEvents.remove(type);
+        }
+    }
+
+    /**
+     * @return number of received events dropped because a newer one of the same class arrived before they were posted
+     */
+    public long getConflatedCount() {
+        return conflatedCount.get();
+    }
+}
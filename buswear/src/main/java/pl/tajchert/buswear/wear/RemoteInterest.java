@@ -0,0 +1,222 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Event types remote buses subscribe to, as advertised by them with MessageHeader.KIND_INTEREST messages. Each bus sends
+ * its full list of subscribed types when it is created and then only types added or removed by register/unregister.
+ * Advertisements are numbered, if one goes missing the table of that node is dropped and a full list is requested.
+ * A node that connects again has its table dropped as well, EventBus requests its full list then.
+ * <p/>
+ * A node without a table, because it went out of sync or is connected but did not advertise yet, is assumed to be
+ * interested in everything. Remote interest only rules out events when every known node has a table and none of them
+ * subscribes to the event type or any of its supertypes.
+ * <p/>
+ * Every advertisement also carries the type ids the bus resolves, as known by its {@link WearTypeRegistry}. Messages
+ * carry the class name instead of the id until every node they go to advertised the id.
+ * <pre>
+ * operation (1) | version (4) | type count (4) | class names... | id count (4) | type ids (4 each)...
+ * </pre>
+ */
+public class RemoteInterest {
+
+    public static final byte NONE = 0;
+    //Full list, the receiver replies with its own full list
+    public static final byte FULL_REQUEST = 1;
+    //Full list sent as a reply
+    public static final byte FULL = 2;
+    public static final byte ADDED = 3;
+    public static final byte REMOVED = 4;
+
+    private final Map<String, Set<Class<?>>> typesByNode = new HashMap<String, Set<Class<?>>>();
+    private final Map<String, Integer> versionByNode = new HashMap<String, Integer>();
+    //Nodes known to be there whose table is missing until they send their full list
+    private final Set<String> unsyncedNodes = new HashSet<String>();
+    //Type ids each node resolves, missing until it advertises them
+    private final Map<String, Set<Integer>> typeIdsByNode = new HashMap<String, Set<Integer>>();
+    private final Map<Class<?>, Boolean> interestCache = new HashMap<Class<?>, Boolean>();
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Creates advertisement payload
+     */
+    @NonNull
+    public static byte[] encode(byte operation, int version, @NonNull Collection<Class<?>> types) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteStream);
+        try {
+            out.writeByte(operation);
+            out.writeInt(version);
+            out.writeInt(types.size());
+            for (Class<?> type : types) {
+                out.writeUTF(type.getName());
+            }
+            Set<Integer> typeIds = WearTypeRegistry.getKnownTypeIds();
+            out.writeInt(typeIds.size());
+            for (Integer typeId : typeIds) {
+                out.writeInt(typeId);
+            }
+        } catch (IOException e) {
+            //ByteArrayOutputStream does not throw
+            throw new RuntimeException(e);
+        }
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Updates table of the node with received advertisement
+     *
+     * @return {@link #FULL} if the node asked for our full list, {@link #FULL_REQUEST} if its table went out of sync
+     * and needs a full list from it, otherwise {@link #NONE}
+     */
+    public synchronized byte onAdvertisementReceived(@NonNull String nodeId, @NonNull byte[] data) {
+        byte operation;
+        int version;
+        Set<Class<?>> types = new HashSet<Class<?>>();
+        Set<Integer> typeIds = new HashSet<Integer>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            operation = in.readByte();
+            version = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                //Types missing on this side cannot be a supertype of anything we send, skip them
+                Class<?> type = WearTypeRegistry.forName(in.readUTF());
+                if (type != null) {
+                    types.add(type);
+                }
+            }
+            int idCount = in.readInt();
+            if (idCount < 0 || idCount > in.available() / 4) {
+                throw new IOException("type id count " + idCount);
+            }
+            for (int i = 0; i < idCount; i++) {
+                typeIds.add(in.readInt());
+            }
+        } catch (IOException e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed interest advertisement: " + e.getMessage());
+            return NONE;
+        }
+
+        interestCache.clear();
+        if (operation == FULL_REQUEST || operation == FULL) {
+            typesByNode.put(nodeId, types);
+            versionByNode.put(nodeId, version);
+            typeIdsByNode.put(nodeId, typeIds);
+            unsyncedNodes.remove(nodeId);
+            return operation == FULL_REQUEST ? FULL : NONE;
+        }
+
+        Integer lastVersion = versionByNode.get(nodeId);
+        Set<Class<?>> nodeTypes = typesByNode.get(nodeId);
+        if (lastVersion == null || nodeTypes == null || version != lastVersion + 1) {
+            //Missed an update, send it everything until it sends its full list again
+            typesByNode.remove(nodeId);
+            versionByNode.remove(nodeId);
+            typeIdsByNode.remove(nodeId);
+            unsyncedNodes.add(nodeId);
+            return FULL_REQUEST;
+        }
+        versionByNode.put(nodeId, version);
+        typeIdsByNode.put(nodeId, typeIds);
+        if (operation == ADDED) {
+            nodeTypes.addAll(types);
+        } else if (operation == REMOVED) {
+            nodeTypes.removeAll(types);
+        }
+        return NONE;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Drops what the node advertised before, it may have been restarted meanwhile. It counts as interested in
+     * everything until its full list arrives, which the caller should request with {@link #FULL_REQUEST}.
+     */
+    public synchronized void onNodeConnected(@NonNull String nodeId) {
+        typesByNode.remove(nodeId);
+        versionByNode.remove(nodeId);
+        typeIdsByNode.remove(nodeId);
+        unsyncedNodes.add(nodeId);
+        interestCache.clear();
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Forgets the node, events are no longer sent because of its subscribers
+     */
+    public synchronized void onNodeDisconnected(@NonNull String nodeId) {
+        typesByNode.remove(nodeId);
+        versionByNode.remove(nodeId);
+        typeIdsByNode.remove(nodeId);
+        unsyncedNodes.remove(nodeId);
+        interestCache.clear();
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks if any remote bus could receive the event, true if no node advertised its types yet or some node has no
+     * table
+     *
+     * @param connectedNodeIds nodes the event would be sent to, as last known by the transport
+     */
+    public synchronized boolean isInterested(@NonNull Class<?> eventClass, @NonNull Collection<String> connectedNodeIds) {
+        if (typesByNode.isEmpty() || !unsyncedNodes.isEmpty()) {
+            return true;
+        }
+        for (String nodeId : connectedNodeIds) {
+            if (!typesByNode.containsKey(nodeId)) {
+                return true;
+            }
+        }
+        Boolean interested = interestCache.get(eventClass);
+        if (interested == null) {
+            interested = findInterest(eventClass);
+            interestCache.put(eventClass, interested);
+        }
+        return interested;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks if every given node advertised that it resolves the type id
+     *
+     * @param nodeIds nodes the message goes to, false if empty as the message may be kept and sent later
+     */
+    public synchronized boolean isTypeIdKnown(int typeId, @NonNull Collection<String> nodeIds) {
+        if (nodeIds.isEmpty()) {
+            return false;
+        }
+        for (String nodeId : nodeIds) {
+            Set<Integer> typeIds = typeIdsByNode.get(nodeId);
+            if (typeIds == null || !typeIds.contains(typeId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean findInterest(@NonNull Class<?> eventClass) {
+        for (Set<Class<?>> nodeTypes : typesByNode.values()) {
+            for (Class<?> type : nodeTypes) {
+                //Subscribers receive subclasses and implementations too
+                if (type.isAssignableFrom(eventClass)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,16 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Reason a remote request failed, passed as cause of the ExecutionException thrown by {@link RequestFuture#get()}.
+ * A request which timed out fails with TimeoutException instead.
+ */
+public class RemoteRequestException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public RemoteRequestException(@NonNull String message) {
+        super(message);
+    }
+}
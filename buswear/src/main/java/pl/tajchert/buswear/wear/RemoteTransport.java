@@ -0,0 +1,87 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+
+/**
+ * Carries BusWear messages between EventBus instances. {@link GooglePlayServicesTransport} is used by default,
+ * {@link LoopbackTransport} connects two EventBus instances in the same process.
+ */
+public interface RemoteTransport {
+
+    interface OnMessageReceivedListener {
+        /**
+         * Called for every message coming from a remote EventBus.
+         *
+         * @param sourceNodeId id of the node that sent the message
+         * @param path         message path, {@link WearBusTools#MESSAGE_PATH}
+         * @param data         message starting with {@link MessageHeader}
+         */
+        void onMessageReceived(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data);
+    }
+
+    interface OnNodesChangedListener {
+        /**
+         * Called when a node connects, on a thread of the transport, so it should only hand the work off.
+         *
+         * @param nodeId id of the node, as passed to {@link OnMessageReceivedListener}
+         */
+        void onNodeConnected(@NonNull String nodeId);
+
+        /**
+         * Called when a node disconnects, on a thread of the transport, so it should only hand the work off.
+         *
+         * @param nodeId id of the node, as passed to {@link OnMessageReceivedListener}
+         */
+        void onNodeDisconnected(@NonNull String nodeId);
+    }
+
+    /**
+     * Sends the message to every connected node. It is always called from the {@link OutboundDispatcher} thread,
+     * in the order messages were posted.
+     *
+     * @param path message path, {@link WearBusTools#MESSAGE_PATH}
+     * @param data message starting with {@link MessageHeader}
+     */
+    void send(@NonNull String path, @NonNull byte[] data);
+
+    /**
+     * Sends the message to one node only, used for replies such as acknowledgements. It is always called from the
+     * {@link OutboundDispatcher} thread.
+     *
+     * @param nodeId id of the node, as passed to {@link OnMessageReceivedListener}
+     * @param path   message path, {@link WearBusTools#MESSAGE_PATH}
+     * @param data   message starting with {@link MessageHeader}
+     */
+    void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data);
+
+    /**
+     * Returns nodes a message sent now is expected to reach, as last known. It must not block.
+     *
+     * @return node ids, empty if not known yet
+     */
+    @NonNull
+    Collection<String> getConnectedNodeIds();
+
+    /**
+     * Set the listener receiving incoming messages, EventBus sets itself here when it is created.
+     *
+     * @param listener
+     */
+    void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener);
+
+    /**
+     * Set the listener told about nodes connecting and disconnecting, EventBus sets itself here when it is created.
+     *
+     * @param listener
+     */
+    void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener);
+
+    /**
+     * Stops the transport from listening to anything shared with other instances, so it can be garbage collected.
+     * Called by {@link pl.tajchert.buswear.EventBus#release()}, messages already sent are still delivered.
+     */
+    void release();
+}
@@ -0,0 +1,215 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Response to a remote request. The request is sent to every connected node and the first response completes it.
+ * It fails with {@link RemoteRequestException} once every node it was sent to answered it was not handled or
+ * disconnected, or once the request could not be sent, and with TimeoutException when no response came in time.
+ */
+public class RequestFuture<R> implements Future<R> {
+
+    public interface Callback<R> {
+        /**
+         * Called once, on the thread which completed the request, it should only hand the work off
+         */
+        void onResponse(@NonNull R response);
+
+        /**
+         * @param error RemoteRequestException or TimeoutException
+         */
+        void onFailure(@NonNull Exception error);
+    }
+
+    private final Class<R> responseType;
+    private final long timeoutMs;
+    private final CountDownLatch done = new CountDownLatch(1);
+    //Everything below is guarded by this
+    private Set<String> remainingNodes = Collections.emptySet();
+    @Nullable
+    private Runnable onCancel;
+    @Nullable
+    private Callback<R> callback;
+    private boolean completed;
+    private boolean cancelled;
+    @Nullable
+    private R response;
+    @Nullable
+    private Exception error;
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public RequestFuture(@NonNull Class<R> responseType, long timeoutMs) {
+        this.responseType = responseType;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Sets callback told about the response or failure, right away if the request is already complete. Not called
+     * for a cancelled request.
+     */
+    public void setCallback(@Nullable Callback<R> callback) {
+        boolean notify;
+        synchronized (this) {
+            this.callback = callback;
+            notify = completed && !cancelled;
+        }
+        if (notify && callback != null) {
+            notifyCallback(callback);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Called once the request was handed to the transport
+     *
+     * @param nodes    nodes the request was sent to, empty if not known
+     * @param onCancel removes the request from its tracker
+     */
+    public synchronized void onSent(@NonNull Collection<String> nodes, @NonNull Runnable onCancel) {
+        this.remainingNodes = new HashSet<String>(nodes);
+        this.onCancel = onCancel;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     *
+     * @return true if the request completed with this response
+     */
+    public boolean onResponse(@NonNull String nodeId, @NonNull Object received) {
+        if (!responseType.isInstance(received)) {
+            return onNodeFailed(nodeId, new RemoteRequestException("Node " + nodeId + " replied with " + received.getClass().getName()
+                    + " instead of " + responseType.getName()));
+        }
+        return complete(responseType.cast(received), null);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Node did not handle the request or disconnected, the request fails once no node it was sent to is left
+     *
+     * @return true if the request completed with this failure
+     */
+    public boolean onNodeFailed(@NonNull String nodeId, @NonNull RemoteRequestException failure) {
+        synchronized (this) {
+            if (!remainingNodes.remove(nodeId) || !remainingNodes.isEmpty()) {
+                return false;
+            }
+        }
+        return complete(null, failure);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public void onTimeout() {
+        complete(null, new TimeoutException("No response within " + timeoutMs + " ms"));
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     */
+    public void onNotSent() {
+        complete(null, new RemoteRequestException("Request could not be sent"));
+    }
+
+    private boolean complete(@Nullable R result, @Nullable Exception failure) {
+        Callback<R> completedCallback;
+        synchronized (this) {
+            if (completed || cancelled) {
+                return false;
+            }
+            completed = true;
+            response = result;
+            error = failure;
+            completedCallback = callback;
+        }
+        done.countDown();
+        if (completedCallback != null) {
+            notifyCallback(completedCallback);
+        }
+        return true;
+    }
+
+    private void notifyCallback(@NonNull Callback<R> target) {
+        R result;
+        Exception failure;
+        synchronized (this) {
+            result = response;
+            failure = error;
+        }
+        if (failure != null) {
+            target.onFailure(failure);
+        } else if (result != null) {
+            target.onResponse(result);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable cancelAction;
+        synchronized (this) {
+            if (completed || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            cancelAction = onCancel;
+        }
+        if (cancelAction != null) {
+            cancelAction.run();
+        }
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public R get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResponse();
+    }
+
+    @Override
+    public R get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResponse();
+    }
+
+    private synchronized R getResponse() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return response;
+    }
+}
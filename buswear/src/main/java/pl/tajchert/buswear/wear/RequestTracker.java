@@ -0,0 +1,169 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Both sides of remote requests. Sent requests wait here for a response by epoch and sequence number of their
+ * {@link MessageHeader#KIND_REQUEST} message, many of them can be in flight at once. Received requests are kept by
+ * identity of the posted event until a subscriber replies to it, the oldest unanswered ones are forgotten once there
+ * are too many of them, their senders time out.
+ * <p/>
+ * {@link MessageHeader#KIND_RESPONSE} payload:
+ * <pre>
+ * request sequence number (4) | request epoch (4) | response event, nothing if the request was not handled
+ * </pre>
+ * The epoch keeps a late response to a request of an earlier process from completing a new request with the same
+ * sequence number.
+ */
+public class RequestTracker {
+
+    public static final int RESPONSE_HEADER_SIZE = 8;
+
+    private static final int MAX_UNANSWERED = 256;
+
+    public static class ReplyTarget {
+        @NonNull
+        public final String nodeId;
+        public final int requestEpoch;
+        public final int requestId;
+        private final Object request;
+
+        private ReplyTarget(@NonNull Object request, @NonNull String nodeId, int requestEpoch, int requestId) {
+            this.request = request;
+            this.nodeId = nodeId;
+            this.requestEpoch = requestEpoch;
+            this.requestId = requestId;
+        }
+    }
+
+    private final Map<Long, RequestFuture<?>> pending = new ConcurrentHashMap<Long, RequestFuture<?>>();
+    //Received requests by identity of the posted event, guarded by unanswered
+    private final Map<Object, List<ReplyTarget>> unanswered = new IdentityHashMap<Object, List<ReplyTarget>>();
+    private final LinkedList<ReplyTarget> unansweredOrder = new LinkedList<ReplyTarget>();
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Starts waiting for a response, called right before the request is sent
+     *
+     * @param requestEpoch epoch of the request message
+     * @param requestId    sequence number of the request message
+     * @param nodes        nodes the request is sent to, empty if not known
+     */
+    public void track(int requestEpoch, int requestId, @NonNull Collection<String> nodes, @NonNull final RequestFuture<?> future) {
+        final Long key = DeliveryTracker.toKey(requestEpoch, requestId);
+        pending.put(key, future);
+        future.onSent(nodes, new Runnable() {
+            @Override
+            public void run() {
+                pending.remove(key);
+            }
+        });
+        DeliveryTracker.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(key) != null) {
+                    future.onTimeout();
+                }
+            }
+        }, future.getTimeoutMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Handles a received response, responses to completed or unknown requests are ignored
+     *
+     * @param response decoded response, null if the node did not handle the request or it cannot be decoded
+     */
+    public void onResponse(@NonNull String nodeId, int requestEpoch, int requestId, @Nullable Object response) {
+        Long key = DeliveryTracker.toKey(requestEpoch, requestId);
+        RequestFuture<?> future = pending.get(key);
+        if (future == null) {
+            return;
+        }
+        boolean completed = response != null
+                ? future.onResponse(nodeId, response)
+                : future.onNodeFailed(nodeId, new RemoteRequestException("Request was not handled by node " + nodeId));
+        if (completed) {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Fails requests waiting only for the node that disconnected
+     */
+    public void onNodeDisconnected(@NonNull String nodeId) {
+        for (Map.Entry<Long, RequestFuture<?>> entry : new ArrayList<Map.Entry<Long, RequestFuture<?>>>(pending.entrySet())) {
+            if (entry.getValue().onNodeFailed(nodeId, new RemoteRequestException("Node " + nodeId + " disconnected"))) {
+                pending.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Remembers where to send the reply to the received request, called before it is posted
+     */
+    public void onRequestReceived(@NonNull Object request, @NonNull String nodeId, int requestEpoch, int requestId) {
+        ReplyTarget target = new ReplyTarget(request, nodeId, requestEpoch, requestId);
+        synchronized (unanswered) {
+            List<ReplyTarget> targets = unanswered.get(request);
+            if (targets == null) {
+                //Equal requests of cached types like small Integers are the same object, they are answered in order
+                targets = new LinkedList<ReplyTarget>();
+                unanswered.put(request, targets);
+            }
+            targets.add(target);
+            unansweredOrder.add(target);
+            if (unansweredOrder.size() > MAX_UNANSWERED) {
+                remove(unansweredOrder.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     *
+     * @return where to send the reply, null if the event is not an unanswered received request
+     */
+    @Nullable
+    public ReplyTarget takeReplyTarget(@NonNull Object request) {
+        synchronized (unanswered) {
+            List<ReplyTarget> targets = unanswered.get(request);
+            if (targets == null) {
+                return null;
+            }
+            ReplyTarget target = targets.get(0);
+            unansweredOrder.remove(target);
+            remove(target);
+            return target;
+        }
+    }
+
+    /**
+     * @return number of sent requests waiting for a response
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void remove(@NonNull ReplyTarget target) {
+        List<ReplyTarget> targets = unanswered.get(target.request);
+        if (targets != null) {
+            targets.remove(target);
+            if (targets.isEmpty()) {
+                unanswered.remove(target.request);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package pl.tajchert.buswear.wear;
+
+import java.util.Random;
+
+/**
+ * How many times a message failing to reach a node is sent, and how long to wait between attempts. Delay doubles
+ * after every failed attempt up to the maximum, each wait is randomly shortened by up to a half so nodes failing at
+ * the same time are not retried all at once.
+ */
+public final class RetryPolicy {
+
+    /**
+     * Every message is sent once
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    /**
+     * Three attempts, waiting around 0.5 and 1 second between them
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 5000);
+
+    private static final Random random = new Random();
+
+    private final int maxAttempts;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+
+    /**
+     * @param maxAttempts    attempts including the first one
+     * @param initialDelayMs delay after the first failed attempt
+     * @param maxDelayMs     longest delay between attempts
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMs, long maxDelayMs) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+        if (initialDelayMs < 0 || maxDelayMs < initialDelayMs) {
+            throw new IllegalArgumentException("Delays must not be negative and maximum delay must not be shorter than initial one");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param failedAttempts attempts failed so far, at least 1
+     * @return randomized delay before the next attempt
+     */
+    public long getDelayMs(int failedAttempts) {
+        long delay = initialDelayMs;
+        for (int i = 1; i < failedAttempts && delay < maxDelayMs; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMs);
+        long half = delay / 2;
+        synchronized (random) {
+            return delay - (half > 0 ? (long) (random.nextDouble() * half) : 0);
+        }
+    }
+}
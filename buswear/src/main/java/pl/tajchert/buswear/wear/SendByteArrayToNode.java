@@ -1,51 +1,95 @@
 package pl.tajchert.buswear.wear;
 
-import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.MessageApi;
-import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.NodeApi;
-import com.google.android.gms.wearable.Wearable;
+public class SendByteArrayToNode implements Runnable {
 
-import java.util.concurrent.TimeUnit;
+    public interface OnSendListener {
+        /**
+         * Called with the written message right before it is handed to the transport, its header can still be
+         * changed
+         */
+        void onSending(@NonNull byte[] message);
 
-public class SendByteArrayToNode extends Thread {
+        /**
+         * Called if the event could not be encoded
+         */
+        void onNotSent();
+    }
 
-    private final byte[] objectArray;
-    private final Context context;
-    private final boolean sticky;
-    private final Class clazzToSend;
+    private final Object event;
+    private final RemoteTransport transport;
+    private final byte kind;
+    @Nullable
+    private final OnSendListener listener;
 
     /**
      * Internal BusWear method, using it outside of library is possible but not supported or tested
+     * Event is parsed when the task runs on the OutboundDispatcher thread, not on the posting thread
      */
-    public SendByteArrayToNode(byte[] objArray, Class classToSend, Context ctx, boolean isSticky) {
-        objectArray = objArray;
-        context = ctx;
-        sticky = isSticky;
-        clazzToSend = classToSend;
-
-        if ((objectArray.length / 1024) > 100) {
-            throw new RuntimeException("Object is too big to push it via Google Play Services");
-        }
+    public SendByteArrayToNode(Object eventToSend, RemoteTransport remoteTransport, boolean isSticky) {
+        this(eventToSend, remoteTransport, isSticky ? MessageHeader.KIND_STICKY_EVENT : MessageHeader.KIND_EVENT, null);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is possible but not supported or tested
+     * Sends the event as a message of the given kind, the listener gets the message before it is sent
+     */
+    public SendByteArrayToNode(Object eventToSend, RemoteTransport remoteTransport, byte messageKind, @Nullable OnSendListener sendListener) {
+        event = eventToSend;
+        transport = remoteTransport;
+        kind = messageKind;
+        listener = sendListener;
     }
 
+    @Override
     public void run() {
-        GoogleApiClient googleApiClient = SendWearManager.getInstance(context);
-        googleApiClient.blockingConnect(WearBusTools.CONNECTION_TIME_OUT_MS, TimeUnit.MILLISECONDS);
-        NodeApi.GetConnectedNodesResult nodes = Wearable.NodeApi.getConnectedNodes(googleApiClient).await();
-        for (Node node : nodes.getNodes()) {
-            MessageApi.SendMessageResult result;
-            if (sticky) {
-                result = Wearable.MessageApi.sendMessage(googleApiClient, node.getId(), WearBusTools.MESSAGE_PATH_STICKY + WearBusTools.CLASS_NAME_DELIMITER + clazzToSend.getName(), objectArray).await();
-            } else {
-                result = Wearable.MessageApi.sendMessage(googleApiClient, node.getId(), WearBusTools.MESSAGE_PATH + WearBusTools.CLASS_NAME_DELIMITER + clazzToSend.getName(), objectArray).await();
-            }
-            if (!result.getStatus().isSuccess()) {
-                Log.v(WearBusTools.BUSWEAR_TAG, "ERROR: failed to send Message via Google Play Services to node " + node.getDisplayName());
+        byte[] message = encode(event, kind, 0);
+        if (message == null) {
+            if (listener != null) {
+                listener.onNotSent();
             }
+            return;
+        }
+        if (listener != null) {
+            listener.onSending(message);
+        }
+        transport.send(WearBusTools.MESSAGE_PATH, message);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is possible but not supported or tested
+     * Writes message of the given kind carrying the event
+     *
+     * @param reservedBytes bytes left free at the start of the payload, before the encoded event
+     * @return message or null if the event cannot be encoded
+     */
+    @Nullable
+    public static byte[] encode(@NonNull Object event, byte kind, int reservedBytes) {
+        byte format = EventCodecs.getFormat(event.getClass());
+
+        //Integer, Float... are written straight into the message, no intermediate array
+        int primitiveSize = WearBusTools.getPrimitiveSize(event);
+        if (format == EventCodecs.FORMAT_SIMPLE && primitiveSize >= 0) {
+            byte[] message = MessageHeader.allocate(kind, event.getClass(), format, reservedBytes + primitiveSize);
+            WearBusTools.writePrimitive(event, message, message.length - primitiveSize);
+            return message;
+        }
+
+        byte[] objectArray;
+        try {
+            objectArray = WearBusTools.parseToSend(event);
+        } catch (RuntimeException e) {
+            Log.e(WearBusTools.BUSWEAR_TAG, "Object cannot be sent: " + e.getMessage());
+            return null;
+        }
+        if (objectArray == null) {
+            return null;
         }
+        byte[] message = MessageHeader.allocate(kind, event.getClass(), format, reservedBytes + objectArray.length);
+        System.arraycopy(objectArray, 0, message, message.length - objectArray.length, objectArray.length);
+        return message;
     }
-}
\ No newline at end of file
+}
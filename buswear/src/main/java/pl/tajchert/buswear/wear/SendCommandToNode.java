@@ -1,52 +1,54 @@
 package pl.tajchert.buswear.wear;
 
-import android.content.Context;
 import android.util.Log;
 
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.MessageApi;
-import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.NodeApi;
-import com.google.android.gms.wearable.Wearable;
+public class SendCommandToNode implements Runnable {
 
-import java.util.concurrent.TimeUnit;
-
-public class SendCommandToNode extends Thread {
-
-    private final byte[] objectArray;
-    private final Context context;
-    private final Class clazzToSend;
-    private final String path;
+    private final byte kind;
+    private final Object event;
+    private final RemoteTransport transport;
+    private final Class<?> clazzToSend;
 
     /**
      * Internal BusWear method, using it outside of library is possible but not supported or tested
+     *
+     * @param messageKind one of MessageHeader sticky removal kinds
+     * @param classToSend class of sticky events to remove, null to remove all of them
      */
-    public SendCommandToNode(String messagePath, byte[] objArray, Class classToSend, Context ctx) {
-        context = ctx;
+    public SendCommandToNode(byte messageKind, Class<?> classToSend, RemoteTransport remoteTransport) {
+        kind = messageKind;
+        transport = remoteTransport;
         clazzToSend = classToSend;
-        path = messagePath;
-
-        if(objArray != null){
-            objectArray = objArray;
-        } else {
-            objectArray = "".getBytes();
-        }
+        event = null;
+    }
 
-        if ((objectArray.length / 1024) > 100) {
-            throw new RuntimeException("Object is too big to push it via Google Play Services");
-        }
+    /**
+     * Internal BusWear method, using it outside of library is possible but not supported or tested
+     * Event is parsed when the task runs on the OutboundDispatcher thread, not on the calling thread
+     */
+    public SendCommandToNode(byte messageKind, Object eventToSend, RemoteTransport remoteTransport) {
+        kind = messageKind;
+        transport = remoteTransport;
+        clazzToSend = eventToSend.getClass();
+        event = eventToSend;
     }
 
+    @Override
     public void run() {
-        GoogleApiClient googleApiClient = SendWearManager.getInstance(context);
-        googleApiClient.blockingConnect(WearBusTools.CONNECTION_TIME_OUT_MS, TimeUnit.MILLISECONDS);
-        NodeApi.GetConnectedNodesResult nodes = Wearable.NodeApi.getConnectedNodes(googleApiClient).await();
-        for (Node node : nodes.getNodes()) {
-            MessageApi.SendMessageResult result;
-            result = Wearable.MessageApi.sendMessage(googleApiClient, node.getId(), path + WearBusTools.CLASS_NAME_DELIMITER + clazzToSend.getName(), objectArray).await();
-            if (!result.getStatus().isSuccess()) {
-                Log.v(WearBusTools.BUSWEAR_TAG, "ERROR: failed to send Message via Google Play Services to node " + node.getDisplayName());
+        byte[] payload = new byte[0];
+        byte format = EventCodecs.FORMAT_NONE;
+        if (event != null) {
+            format = EventCodecs.getFormat(clazzToSend);
+            try {
+                payload = WearBusTools.parseToSend(event);
+            } catch (RuntimeException e) {
+                Log.e(WearBusTools.BUSWEAR_TAG, "Object cannot be sent: " + e.getMessage());
+                return;
+            }
+            if (payload == null) {
+                return;
             }
         }
+        transport.send(WearBusTools.MESSAGE_PATH, MessageHeader.write(kind, clazzToSend, format, payload));
     }
-}
\ No newline at end of file
+}
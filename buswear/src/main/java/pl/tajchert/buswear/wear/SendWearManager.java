@@ -9,13 +9,24 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Wearable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class SendWearManager {
 
     public interface OnSendWearConnectionCallback extends GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
     }
 
+    public enum ConnectionState {
+        DISCONNECTED, CONNECTING, CONNECTED, SUSPENDED, FAILED
+    }
+
     private static GoogleApiClient mGoogleApiClient;
 
+    private static final Object stateLock = new Object();
+    private static ConnectionState connectionState = ConnectionState.DISCONNECTED;
+    private static final List<Runnable> pendingSends = new ArrayList<Runnable>();
+
     /**
      * Set the default OnSendWearConnectionCallback to receive Google Api Client connection
      * callbacks. This must be set before any EventBus methods, usually in the application
@@ -27,6 +38,51 @@ public class SendWearManager {
         SendWearManager.defaultOnSendWearConnectionCallback = defaultOnSendWearConnectionCallback;
     }
 
+    /**
+     * Starts connecting the Google Api Client ahead of the first remote event, so the first post is not delayed
+     * by the connection. Usually called in the application class or in onCreate of the first activity.
+     *
+     * @param context
+     */
+    public static void prewarm(@NonNull Context context) {
+        synchronized (stateLock) {
+            connectIfNeeded(context);
+        }
+    }
+
+    public static ConnectionState getConnectionState() {
+        synchronized (stateLock) {
+            return connectionState;
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Runs the task right away if the Google Api Client is connected, otherwise keeps it in order and starts the
+     * connection if it is not already in progress. Kept tasks are run on the {@link OutboundDispatcher} thread once
+     * the client connects, this method needs to be called from that thread as well so order is preserved.
+     *
+     * @param context
+     * @param task
+     */
+    public static void runWhenConnected(@NonNull Context context, @NonNull Runnable task) {
+        List<Runnable> ready;
+        synchronized (stateLock) {
+            if (connectionState != ConnectionState.CONNECTED) {
+                if (pendingSends.size() >= OutboundDispatcher.getInstance().getQueueCapacity()) {
+                    Log.e(WearBusTools.BUSWEAR_TAG, "Google Api Client is not connected and pending queue is full, message dropped");
+                } else {
+                    pendingSends.add(task);
+                }
+                connectIfNeeded(context);
+                return;
+            }
+            ready = takePendingSends();
+            ready.add(task);
+        }
+        runAll(ready);
+    }
+
     /**
      * Internal BusWear method, using it outside of library is not supported or tested.
      * Returns a instance of Google API Client
@@ -39,6 +95,8 @@ public class SendWearManager {
             }
 
             mGoogleApiClient = new GoogleApiClient.Builder(context)
+                    .addConnectionCallbacks(connectionStateCallback)
+                    .addOnConnectionFailedListener(connectionStateCallback)
                     .addConnectionCallbacks(defaultOnSendWearConnectionCallback)
                     .addOnConnectionFailedListener(defaultOnSendWearConnectionCallback)
                     .addApi(Wearable.API)
@@ -48,6 +106,67 @@ public class SendWearManager {
         return mGoogleApiClient;
     }
 
+    private static List<Runnable> takePendingSends() {
+        List<Runnable> pending = new ArrayList<Runnable>(pendingSends);
+        pendingSends.clear();
+        return pending;
+    }
+
+    private static void runAll(@NonNull List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static void connectIfNeeded(@NonNull Context context) {
+        //Suspended client reconnects on its own, there is nothing to start
+        if (connectionState == ConnectionState.DISCONNECTED || connectionState == ConnectionState.FAILED) {
+            connectionState = ConnectionState.CONNECTING;
+            getInstance(context.getApplicationContext()).connect();
+        }
+    }
+
+    private static final OnSendWearConnectionCallback connectionStateCallback = new OnSendWearConnectionCallback() {
+        @Override
+        public void onConnected(Bundle bundle) {
+            synchronized (stateLock) {
+                connectionState = ConnectionState.CONNECTED;
+            }
+            //Warm node cache and then run kept tasks, on the dispatcher thread so they stay in order with new ones
+            OutboundDispatcher.getInstance().submit(new Runnable() {
+                @Override
+                public void run() {
+                    NodeRegistry.getInstance().getConnectedNodes(mGoogleApiClient);
+                    List<Runnable> ready;
+                    synchronized (stateLock) {
+                        ready = takePendingSends();
+                    }
+                    runAll(ready);
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionSuspended(int cause) {
+            synchronized (stateLock) {
+                connectionState = ConnectionState.SUSPENDED;
+                NodeRegistry.getInstance().invalidate();
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+            synchronized (stateLock) {
+                connectionState = ConnectionState.FAILED;
+                NodeRegistry.getInstance().invalidate();
+                if (!pendingSends.isEmpty()) {
+                    Log.e(WearBusTools.BUSWEAR_TAG, "Google Api Client connection failed, " + pendingSends.size() + " messages dropped");
+                    pendingSends.clear();
+                }
+            }
+        }
+    };
+
     private static OnSendWearConnectionCallback defaultOnSendWearConnectionCallback = new OnSendWearConnectionCallback() {
         @Override
         public void onConnected(Bundle bundle) {
@@ -0,0 +1,94 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps at most one unsent sticky event per class in the outbound queue. A sticky event posted while an older one of
+ * the same class is still waiting replaces it in its place in the queue, so only the newest value is sent. The
+ * remote sticky store keeps only the newest value anyway.
+ * <p/>
+ * Sticky removals end merging for their class, events posted after a removal are queued behind it.
+ */
+public class StickyConflation {
+
+    private final RemoteTransport transport;
+    //Slots waiting in the outbound queue by class, guarded by itself
+    private final Map<Class<?>, Slot> pending = new HashMap<Class<?>, Slot>();
+    private final AtomicLong conflatedCount = new AtomicLong();
+
+    public StickyConflation(@NonNull RemoteTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Queues the sticky event, or replaces the unsent one of the same class
+     */
+    public void post(@NonNull Object event) {
+        final Class<?> type = event.getClass();
+        synchronized (pending) {
+            Slot waiting = pending.get(type);
+            if (waiting != null) {
+                waiting.event = event;
+                conflatedCount.incrementAndGet();
+                return;
+            }
+
+            final Slot slot = new Slot(event);
+            //Submitted under the lock, so a slot in the map always has its task queued
+            boolean submitted = OutboundDispatcher.getInstance().submit(new Runnable() {
+                @Override
+                public void run() {
+                    Object latest;
+                    synchronized (pending) {
+                        latest = slot.event;
+                        if (pending.get(type) == slot) {
+                            pending.remove(type);
+                        }
+                    }
+                    new SendByteArrayToNode(latest, transport, true).run();
+                }
+            });
+            if (submitted) {
+                pending.put(type, slot);
+            }
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Queues removal of sticky events of the class, or of all classes for null. Unsent events are still sent before
+     * the removal, but events posted after it are not merged into them.
+     */
+    public void submitRemoval(@Nullable Class<?> type, @NonNull Runnable removal) {
+        synchronized (pending) {
+            if (type == null) {
+                pending.clear();
+            } else {
+                pending.remove(type);
+            }
+            OutboundDispatcher.getInstance().submit(removal);
+        }
+    }
+
+    /**
+     * @return number of sticky events replaced by a newer one before they were sent
+     */
+    public long getConflatedCount() {
+        return conflatedCount.get();
+    }
+
+    private static class Slot {
+        //Guarded by pending
+        Object event;
+
+        Slot(@NonNull Object event) {
+            this.event = event;
+        }
+    }
+}
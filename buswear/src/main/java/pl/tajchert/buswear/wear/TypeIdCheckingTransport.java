@@ -0,0 +1,67 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Internal BusWear transport wrapper, using it outside of library is not supported or tested. EventBus puts it in
+ * front of its transport, a message written with a type id goes out with the class name instead unless every node it
+ * is sent to advertised that it resolves the id, see {@link RemoteInterest}. Until then a class registered on this
+ * side only still arrives.
+ */
+public class TypeIdCheckingTransport implements RemoteTransport {
+
+    private final RemoteTransport transport;
+    private final RemoteInterest remoteInterest;
+
+    public TypeIdCheckingTransport(@NonNull RemoteTransport transport, @NonNull RemoteInterest remoteInterest) {
+        this.transport = transport;
+        this.remoteInterest = remoteInterest;
+    }
+
+    @Override
+    public void send(@NonNull String path, @NonNull byte[] data) {
+        transport.send(path, checkTypeId(data, transport.getConnectedNodeIds()));
+    }
+
+    @Override
+    public void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+        transport.sendToNode(nodeId, path, checkTypeId(data, Collections.singletonList(nodeId)));
+    }
+
+    @NonNull
+    private byte[] checkTypeId(@NonNull byte[] data, @NonNull Collection<String> nodeIds) {
+        if (!MessageHeader.isMessage(data)) {
+            return data;
+        }
+        int typeId = MessageHeader.getTypeId(data);
+        if (typeId == 0 || remoteInterest.isTypeIdKnown(typeId, nodeIds)) {
+            return data;
+        }
+        return MessageHeader.withTypeName(data);
+    }
+
+    @NonNull
+    @Override
+    public Collection<String> getConnectedNodeIds() {
+        return transport.getConnectedNodeIds();
+    }
+
+    @Override
+    public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+        transport.setOnMessageReceivedListener(listener);
+    }
+
+    @Override
+    public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+        transport.setOnNodesChangedListener(listener);
+    }
+
+    @Override
+    public void release() {
+        transport.release();
+    }
+}
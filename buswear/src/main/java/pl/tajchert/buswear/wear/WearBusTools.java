@@ -7,26 +7,26 @@ import android.util.Log;
 
 import org.greenrobot.eventbus.NoSubscriberEvent;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
+import java.util.List;
 
 public class WearBusTools {
 
     public final static String BUSWEAR_TAG = "BusWearTag";
-    public final static String MESSAGE_PATH = "pl.tajchert.buswear.event.";
-    public final static String MESSAGE_PATH_STICKY = "pl.tajchert.buswear.stickyevent.";
-    public final static String MESSAGE_PATH_COMMAND = "pl.tajchert.buswear.command.";
+    //All BusWear messages use this path, what they carry is told by their MessageHeader
+    public final static String MESSAGE_PATH = "pl.tajchert.buswear.message";
 
-    //Commands
-    public final static String ACTION_STICKY_CLEAR_ALL = "pl.tajchert.buswear.clearall";
-
-    //Other commands to remove object of some class of particular one, are created by adding "class." or "event." dynamically to MESSAGE_PATH_COMMAND
-    public final static String PREFIX_CLASS = "class.";
-    public final static String PREFIX_EVENT = "event.";
-
-    public final static String CLASS_NAME_DELIMITER = "-";
-
-    public static final long CONNECTION_TIME_OUT_MS = 100;
+    //MessageApi limit, bigger payloads are streamed over ChannelApi
+    public final static int MAX_MESSAGE_BYTES = 100 * 1024;
+    //Received streams are assembled in memory, this bounds what a peer can make the watch hold
+    public final static int MAX_STREAM_BYTES = 4 * 1024 * 1024;
+    public final static long CHANNEL_CONNECT_TIME_OUT_MS = 5000;
+    public final static long SEND_TIME_OUT_MS = 10000;
 
     /**
      * Converts the Parcelable object to a byte[]
@@ -49,8 +49,20 @@ public class WearBusTools {
      * @return
      */
     public static Parcel byteToParcel(@NonNull byte[] bytes) {
+        return byteToParcel(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Converts part of the byte[] to a Parcel
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static Parcel byteToParcel(@NonNull byte[] bytes, int offset, int length) {
         Parcel parcel = Parcel.obtain();
-        parcel.unmarshall(bytes, 0, bytes.length);
+        parcel.unmarshall(bytes, offset, length);
         parcel.setDataPosition(0);
         return parcel;
     }
@@ -60,27 +72,104 @@ public class WearBusTools {
      * Recreates received object using classname and byte[]
      */
     public static Object getSendSimpleObject(byte[] objectArray, String className) {
+        return getSendSimpleObject(objectArray, 0, objectArray.length, className);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Recreates received object using classname and part of byte[], reading it in place so a received message does
+     * not need to be copied
+     */
+    public static Object getSendSimpleObject(byte[] objectArray, int offset, int length, String className) {
         Object obj = null;
         if (className.equals(String.class.getName())) {
             try {
-                obj = new String(objectArray, "UTF-8");
+                obj = new String(objectArray, offset, length, "UTF-8");
             } catch (UnsupportedEncodingException e) {
                 Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, cannot unparse event as: " + e.getMessage());
             }
-        } else if (className.equals(Integer.class.getName())) {
-            obj = ByteBuffer.wrap(objectArray).getInt();
-        } else if (className.equals(Long.class.getName())) {
-            obj = ByteBuffer.wrap(objectArray).getLong();
-        } else if (className.equals(Double.class.getName())) {
-            obj = ByteBuffer.wrap(objectArray).getDouble();
-        } else if (className.equals(Float.class.getName())) {
-            obj = ByteBuffer.wrap(objectArray).getFloat();
-        } else if (className.equals(Short.class.getName())) {
-            obj = ByteBuffer.wrap(objectArray).getShort();
+        } else if (className.equals(Integer.class.getName()) && length >= 4) {
+            obj = readInt(objectArray, offset);
+        } else if (className.equals(Long.class.getName()) && length >= 8) {
+            obj = readLong(objectArray, offset);
+        } else if (className.equals(Double.class.getName()) && length >= 8) {
+            obj = Double.longBitsToDouble(readLong(objectArray, offset));
+        } else if (className.equals(Float.class.getName()) && length >= 4) {
+            obj = Float.intBitsToFloat(readInt(objectArray, offset));
+        } else if (className.equals(Short.class.getName()) && length >= 2) {
+            obj = (short) ((objectArray[offset] & 0xFF) << 8 | (objectArray[offset + 1] & 0xFF));
         }
         return obj;
     }
 
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns how many bytes {@link #writePrimitive(Object, byte[], int)} takes for the object
+     *
+     * @return size or -1 if the object is not Integer, Long, Float, Double or Short
+     */
+    public static int getPrimitiveSize(Object obj) {
+        if (obj instanceof Integer || obj instanceof Float) {
+            return 4;
+        } else if (obj instanceof Long || obj instanceof Double) {
+            return 8;
+        } else if (obj instanceof Short) {
+            return 2;
+        }
+        return -1;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Writes Integer, Long, Float, Double or Short big-endian straight into the array, same bytes as ByteBuffer
+     * would write, without allocating anything
+     */
+    public static void writePrimitive(@NonNull Object obj, @NonNull byte[] out, int offset) {
+        if (obj instanceof Integer) {
+            writeInt(out, offset, (Integer) obj);
+        } else if (obj instanceof Long) {
+            writeLong(out, offset, (Long) obj);
+        } else if (obj instanceof Float) {
+            writeInt(out, offset, Float.floatToIntBits((Float) obj));
+        } else if (obj instanceof Double) {
+            writeLong(out, offset, Double.doubleToLongBits((Double) obj));
+        } else if (obj instanceof Short) {
+            short value = (Short) obj;
+            out[offset] = (byte) (value >>> 8);
+            out[offset + 1] = (byte) value;
+        } else {
+            throw new IllegalArgumentException("Not a primitive wrapper: " + obj);
+        }
+    }
+
+    private static void writeInt(@NonNull byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(@NonNull byte[] out, int offset, long value) {
+        writeInt(out, offset, (int) (value >>> 32));
+        writeInt(out, offset + 4, (int) value);
+    }
+
+    private static int readInt(@NonNull byte[] array, int offset) {
+        return (array[offset] & 0xFF) << 24 | (array[offset + 1] & 0xFF) << 16 | (array[offset + 2] & 0xFF) << 8 | (array[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(@NonNull byte[] array, int offset) {
+        return (long) readInt(array, offset) << 32 | (readInt(array, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks if {@link #parseToSend(Object)} can parse the object, without parsing it
+     */
+    public static boolean isSendable(Object obj) {
+        return obj != null && EventCodecs.getFormat(obj.getClass()) != EventCodecs.FORMAT_NONE;
+    }
+
     /**
      * Internal BusWear method, using it outside of library is not supported or tested.
      * Method used for parsing known objects or Parcelable one to byte[],
@@ -93,6 +182,10 @@ public class WearBusTools {
         if (obj instanceof NoSubscriberEvent) {
             return null;
         }
+        EventCodec<Object> codec = EventCodecs.get(obj.getClass());
+        if (codec != null) {
+            return codec.encode(obj);
+        }
         byte[] objArray;
         if (obj instanceof String) {
             try {
@@ -100,16 +193,9 @@ public class WearBusTools {
             } catch (UnsupportedEncodingException e) {
                 objArray = ((String) obj).getBytes();
             }
-        } else if (obj instanceof Integer) {
-            objArray = ByteBuffer.allocate(4).putInt((Integer) obj).array();
-        } else if (obj instanceof Long) {
-            objArray = ByteBuffer.allocate(8).putLong((Long) obj).array();
-        } else if (obj instanceof Float) {
-            objArray = ByteBuffer.allocate(4).putFloat((Float) obj).array();
-        } else if (obj instanceof Double) {
-            objArray = ByteBuffer.allocate(8).putDouble((Double) obj).array();
-        } else if (obj instanceof Short) {
-            objArray = ByteBuffer.allocate(2).putShort((Short) obj).array();
+        } else if (getPrimitiveSize(obj) >= 0) {
+            objArray = new byte[getPrimitiveSize(obj)];
+            writePrimitive(obj, objArray, 0);
         } else if (obj instanceof Parcelable) {
             objArray = WearBusTools.parcelToByte((Parcelable) obj);
         } else {
@@ -117,4 +203,73 @@ public class WearBusTools {
         }
         return objArray;
     }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Checks if the message or channel path was created by BusWear
+     */
+    public static boolean isBusWearPath(@NonNull String path) {
+        return path.equals(MESSAGE_PATH);
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns how many bytes a message takes inside a batch
+     */
+    public static int getBatchEntrySize(@NonNull byte[] data) {
+        //Data is written with 4 bytes of length
+        return 4 + data.length;
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Packs messages, each with its own header, into one batch payload sent as MessageHeader.KIND_BATCH
+     */
+    public static byte[] packBatch(@NonNull List<byte[]> data) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteStream);
+        try {
+            out.writeInt(data.size());
+            for (int i = 0; i < data.size(); i++) {
+                out.writeInt(data.get(i).length);
+                out.write(data.get(i));
+            }
+        } catch (IOException e) {
+            //ByteArrayOutputStream does not throw
+            throw new RuntimeException(e);
+        }
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Unpacks batch payload stored in part of the array, messages are added to given list in the order they were sent
+     *
+     * @return false if the batch is malformed
+     */
+    public static boolean unpackBatch(@NonNull byte[] batch, int offset, int length, @NonNull List<byte[]> data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch, offset, length));
+        try {
+            int count = in.readInt();
+            //Every entry takes at least its length, lengths are checked before anything is allocated for them
+            if (count < 0 || count > in.available() / 4) {
+                Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed batch, entry count: " + count);
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                int entryLength = in.readInt();
+                if (entryLength < 0 || entryLength > in.available()) {
+                    Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, malformed batch, entry length: " + entryLength);
+                    return false;
+                }
+                byte[] entry = new byte[entryLength];
+                in.readFully(entry);
+                data.add(entry);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent, cannot unpack batch: " + e.getMessage());
+            return false;
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps event classes to compact numeric ids, so messages carry 4 bytes instead of the fully qualified class name.
+ * Id is derived from the class name, both sides compute the same id without any handshake. Codecs generated for
+ * {@link pl.tajchert.buswear.WearEvent} classes register ids computed at compile time, from the name before
+ * obfuscation, so both sides agree on them even if their APKs are obfuscated differently.
+ * <p/>
+ * Events of classes registered with {@link #register(Class)} are sent with their id, so register them on both sides,
+ * usually in the application class. Classes used by subscribers are learned automatically when they are registered
+ * to EventBus, so their ids can be resolved as well. Events of other classes are sent with their full class name.
+ * Each bus advertises the ids it resolves, a node which did not advertise an id yet gets the class name instead, so
+ * events are not lost while one side registers a class the other does not know yet.
+ */
+public class WearTypeRegistry {
+
+    private static final Object lock = new Object();
+    private static final Map<Integer, Class<?>> typesById = new HashMap<Integer, Class<?>>();
+    private static final Map<Class<?>, Integer> registeredIds = new HashMap<Class<?>, Integer>();
+
+    private static final int MAX_UNKNOWN_NAMES = 256;
+    private static final Map<String, Class<?>> typesByName = new HashMap<String, Class<?>>();
+    private static final Set<String> unknownNames = new HashSet<String>();
+
+    static {
+        register(String.class);
+        register(Integer.class);
+        register(Long.class);
+        register(Float.class);
+        register(Double.class);
+        register(Short.class);
+    }
+
+    private WearTypeRegistry() {
+    }
+
+    /**
+     * Events of the given class will be sent with a compact id instead of the class name. The other side has to
+     * register the same class or subscribe to it.
+     *
+     * @param type event class
+     */
+    public static void register(@NonNull Class<?> type) {
+        register(type, getTypeId(type));
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Same as {@link #register(Class)} with the id computed by buswear-compiler from the class name in source
+     */
+    public static void register(@NonNull Class<?> type, int typeId) {
+        synchronized (lock) {
+            if (learnLocked(type, typeId)) {
+                registeredIds.put(type, typeId);
+            }
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Makes id of the class resolvable, without sending events of that class with their id
+     */
+    public static void learn(@NonNull Class<?> type) {
+        synchronized (lock) {
+            learnLocked(type, getTypeId(type));
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns id to send events of that class with, or null if they should be sent with the class name
+     */
+    @Nullable
+    public static Integer getRegisteredId(@NonNull Class<?> type) {
+        synchronized (lock) {
+            return registeredIds.get(type);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns ids this side resolves, advertised to remote buses so they know which ids they can send
+     */
+    @NonNull
+    public static Set<Integer> getKnownTypeIds() {
+        synchronized (lock) {
+            return new HashSet<Integer>(typesById.keySet());
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns class for the received id, or null if it was not registered nor learned on this side
+     */
+    @Nullable
+    public static Class<?> getType(int typeId) {
+        synchronized (lock) {
+            return typesById.get(typeId);
+        }
+    }
+
+    /**
+     * Internal BusWear method, using it outside of library is not supported or tested.
+     * Returns class for the received name, looked up once and cached, unknown names are cached as well
+     *
+     * @return class or null if there is no such class on this side
+     */
+    @Nullable
+    public static Class<?> forName(@NonNull String className) {
+        synchronized (lock) {
+            Class<?> type = typesByName.get(className);
+            if (type != null || unknownNames.contains(className)) {
+                return type;
+            }
+        }
+
+        Class<?> type = null;
+        try {
+            type = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            Log.d(WearBusTools.BUSWEAR_TAG, "syncEvent error: " + e.getMessage());
+        }
+
+        synchronized (lock) {
+            if (type != null) {
+                typesByName.put(className, type);
+            } else {
+                //Names come from the other side, do not let them grow without a limit
+                if (unknownNames.size() >= MAX_UNKNOWN_NAMES) {
+                    unknownNames.clear();
+                }
+                unknownNames.add(className);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Id of the class, 32 bit FNV-1a hash of its name
+     */
+    public static int getTypeId(@NonNull Class<?> type) {
+        return getTypeId(type.getName());
+    }
+
+    /**
+     * Id of the class with the given binary name, as returned by {@link Class#getName()}
+     */
+    public static int getTypeId(@NonNull String name) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean learnLocked(@NonNull Class<?> type, int typeId) {
+        Class<?> known = typesById.get(typeId);
+        if (known == null) {
+            typesById.put(typeId, type);
+            typesByName.put(type.getName(), type);
+            return true;
+        }
+        if (known != type) {
+            //Extremely unlikely, fall back to the class name for that one
+            Log.e(WearBusTools.BUSWEAR_TAG, "Type id of " + type.getName() + " collides with " + known.getName() + ", it will be sent with class name");
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package pl.tajchert.buswear.wear;
+
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import pl.tajchert.buswear.EventBus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressingTransportTest {
+
+    private CompressingTransport phoneTransport;
+    private CompressingTransport watchTransport;
+    private EventBus phone;
+    private EventBus watch;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+    @Before
+    public void setUp() {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        phoneTransport = new CompressingTransport(pair[0]);
+        watchTransport = new CompressingTransport(pair[1]);
+        phone = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), phoneTransport);
+        watch = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), watchTransport);
+        phone.register(this);
+        watch.register(this);
+    }
+
+    @After
+    public void tearDown() {
+        phone.release();
+        watch.release();
+    }
+
+    @Subscribe
+    public void onEvent(String event) {
+        received.add(event);
+    }
+
+    @Subscribe
+    public void onEvent(Integer request) {
+        watch.reply(request, text(request));
+    }
+
+    @Test
+    public void sentEventIsCompressed() throws Exception {
+        String event = text(1000);
+        assertTrue(phone.postRemoteWithAck(event, 2000).get(2, TimeUnit.SECONDS).isPostedToAll());
+        assertEquals(event, received.poll(2, TimeUnit.SECONDS));
+        assertTrue(phoneTransport.getBytesSaved() > 0);
+    }
+
+    @Test
+    public void responseToSingleNodeIsCompressed() throws Exception {
+        long compressed = watchTransport.getMessagesCompressed();
+        assertEquals(text(1000), phone.request(1000, String.class, 2000).get(2, TimeUnit.SECONDS));
+        assertEquals(compressed + 1, watchTransport.getMessagesCompressed());
+    }
+
+    private static String text(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+}
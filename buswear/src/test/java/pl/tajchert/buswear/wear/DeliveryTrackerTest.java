@@ -0,0 +1,45 @@
+package pl.tajchert.buswear.wear;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryTrackerTest {
+
+    private final DeliveryTracker tracker = new DeliveryTracker();
+
+    @Test
+    public void ackCompletesDelivery() {
+        DeliveryFuture future = track(7, 1);
+        tracker.onAck("node", ack(7, 1));
+        assertTrue(future.isDone());
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void ackOfMessageFromEarlierProcessIsIgnored() {
+        DeliveryFuture future = track(7, 1);
+        //Same sequence number, sent by the previous process and replayed from its journal
+        tracker.onAck("node", ack(6, 1));
+        assertFalse(future.isDone());
+        assertEquals(1, tracker.getPendingCount());
+    }
+
+    private DeliveryFuture track(int epoch, int sequence) {
+        DeliveryFuture future = new DeliveryFuture(60000);
+        tracker.track(epoch, sequence, Collections.singletonList("node"), future);
+        return future;
+    }
+
+    private static MessageHeader ack(int epoch, int sequence) {
+        byte[] payload = DeliveryTracker.encodeAck(sequence, epoch, DeliveryTracker.ACK_POSTED);
+        MessageHeader header = MessageHeader.read("node", MessageHeader.write(MessageHeader.KIND_ACK, null, EventCodecs.FORMAT_NONE, payload));
+        assertNotNull(header);
+        return header;
+    }
+}
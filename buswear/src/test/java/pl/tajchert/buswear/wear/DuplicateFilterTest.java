@@ -0,0 +1,118 @@
+package pl.tajchert.buswear.wear;
+
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import pl.tajchert.buswear.EventBus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    private final DuplicateFilter filter = new DuplicateFilter();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+    @Test
+    public void messageIsAcceptedOnce() {
+        assertTrue(filter.accept("node", 7, 1));
+        assertTrue(filter.accept("node", 7, 2));
+        assertFalse(filter.accept("node", 7, 1));
+        assertFalse(filter.accept("node", 7, 2));
+    }
+
+    @Test
+    public void messagesInsideWindowAreTrackedOutOfOrder() {
+        assertTrue(filter.accept("node", 7, 1000));
+        assertTrue(filter.accept("node", 7, 1000 - DuplicateFilter.WINDOW_SIZE + 1));
+        assertFalse(filter.accept("node", 7, 1000 - DuplicateFilter.WINDOW_SIZE + 1));
+        assertTrue(filter.accept("node", 7, 500));
+        assertFalse(filter.accept("node", 7, 500));
+        assertEquals(0, filter.getTooOldCount());
+    }
+
+    @Test
+    public void messageOlderThanWindowIsAcceptedAndCounted() {
+        assertTrue(filter.accept("node", 7, 5000));
+        //A journal entry replayed long after newer messages went through
+        assertTrue(filter.accept("node", 7, 5000 - DuplicateFilter.WINDOW_SIZE));
+        assertTrue(filter.accept("node", 7, 1));
+        assertEquals(2, filter.getTooOldCount());
+    }
+
+    @Test
+    public void windowMatchesEverySequenceSeenAcrossWrapAround() {
+        Random random = new Random(1);
+        Set<Integer> seen = new HashSet<Integer>();
+        int newest = Integer.MAX_VALUE - 5000;
+        filter.accept("node", 7, newest);
+        seen.add(newest);
+
+        for (int i = 0; i < 200000; i++) {
+            int sequence;
+            if (random.nextInt(4) == 0) {
+                sequence = newest - random.nextInt(DuplicateFilter.WINDOW_SIZE);
+            } else {
+                //Jumps over whole blocks now and then
+                sequence = newest + 1 + random.nextInt(random.nextInt(50) == 0 ? 2000 : 20);
+            }
+            assertEquals("sequence " + sequence, !seen.contains(sequence), filter.accept("node", 7, sequence));
+            seen.add(sequence);
+            if (sequence - newest > 0) {
+                newest = sequence;
+            }
+        }
+        assertTrue("sequence numbers wrapped", newest < 0);
+    }
+
+    @Test
+    public void newEpochStartsOverAndPreviousEpochIsStillChecked() {
+        assertTrue(filter.accept("node", 7, 100));
+        //Sender restarted, its numbers start over
+        assertTrue(filter.accept("node", 9, 1));
+        assertFalse(filter.accept("node", 9, 1));
+        //Replayed from the journal of the previous run
+        assertFalse(filter.accept("node", 7, 100));
+        assertTrue(filter.accept("node", 7, 101));
+    }
+
+    @Test
+    public void nodesAreTrackedSeparately() {
+        assertTrue(filter.accept("first", 7, 1));
+        assertTrue(filter.accept("second", 7, 1));
+        assertFalse(filter.accept("first", 7, 1));
+    }
+
+    @Test
+    public void duplicateReceivedOverLoopbackIsPostedOnce() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        EventBus watch = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), pair[1]);
+        watch.register(this);
+
+        byte[] message = SendByteArrayToNode.encode("once", MessageHeader.KIND_EVENT, 0);
+        pair[0].send(WearBusTools.MESSAGE_PATH, message);
+        //Retried after the first attempt went through
+        pair[0].send(WearBusTools.MESSAGE_PATH, message);
+        pair[0].send(WearBusTools.MESSAGE_PATH, SendByteArrayToNode.encode("next", MessageHeader.KIND_EVENT, 0));
+
+        assertEquals("once", received.poll(2, TimeUnit.SECONDS));
+        assertEquals("next", received.poll(2, TimeUnit.SECONDS));
+        assertNull(received.poll());
+        assertEquals(1, watch.getDuplicateCount());
+        watch.release();
+    }
+
+    @Subscribe
+    public void onEvent(String event) {
+        received.add(event);
+    }
+}
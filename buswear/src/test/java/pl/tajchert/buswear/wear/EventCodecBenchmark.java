@@ -0,0 +1,103 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares a hand written EventCodec with the simple format for the same sensor sample, sent as a String as it has to
+ * be without a codec. Each round trip writes the message, reads its header and decodes the event, as the two sides
+ * do. Parcel does nothing on the JVM, so the Parcelable format can only be compared on a device. Sizes are always
+ * compared, timing only when the build is run with -Pbenchmark.
+ */
+public class EventCodecBenchmark {
+
+    private static final int WARM_UP = 50000;
+    private static final int ITERATIONS = 200000;
+
+    private static final SensorSample SAMPLE = new SensorSample(0.0123f, -9.80665f, 0.5f, 1476789012345L);
+
+    private static final RoundTrip CODEC = new RoundTrip() {
+        @Override
+        byte[] encode(@NonNull SensorSample event) {
+            return SendByteArrayToNode.encode(event, MessageHeader.KIND_EVENT, 0);
+        }
+
+        @Override
+        SensorSample decode(@NonNull MessageHeader header) {
+            return (SensorSample) EventCodecs.get(header.type).decode(header.getPayload());
+        }
+    };
+
+    private static final RoundTrip SIMPLE = new RoundTrip() {
+        @Override
+        byte[] encode(@NonNull SensorSample event) {
+            String text = event.x + "," + event.y + "," + event.z + "," + event.timestamp;
+            return SendByteArrayToNode.encode(text, MessageHeader.KIND_EVENT, 0);
+        }
+
+        @Override
+        SensorSample decode(@NonNull MessageHeader header) {
+            String text = (String) WearBusTools.getSendSimpleObject(header.getMessage(), header.getPayloadOffset(), header.getPayloadLength(), header.className);
+            String[] fields = text.split(",");
+            return new SensorSample(Float.parseFloat(fields[0]), Float.parseFloat(fields[1]), Float.parseFloat(fields[2]), Long.parseLong(fields[3]));
+        }
+    };
+
+    @BeforeClass
+    public static void registerCodec() {
+        EventCodecs.register(SensorSample.class, new SensorSample.Codec());
+    }
+
+    @Test
+    public void codecIsSmallerThanSimpleFormat() {
+        int codecBytes = CODEC.encode(SAMPLE).length;
+        int simpleBytes = SIMPLE.encode(SAMPLE).length;
+        assertEquals(SAMPLE, CODEC.run(SAMPLE, 1));
+        assertEquals(SAMPLE, SIMPLE.run(SAMPLE, 1));
+        assertTrue("EventCodec takes " + codecBytes + " bytes, simple format " + simpleBytes, codecBytes < simpleBytes);
+    }
+
+    @Test
+    public void codecIsFasterThanSimpleFormat() {
+        //Timing depends on the machine, run with -Pbenchmark
+        assumeTrue(Boolean.getBoolean("buswear.benchmark"));
+
+        CODEC.run(SAMPLE, WARM_UP);
+        SIMPLE.run(SAMPLE, WARM_UP);
+        long codecNanos = time(CODEC) / ITERATIONS;
+        long simpleNanos = time(SIMPLE) / ITERATIONS;
+        assertTrue("EventCodec takes " + codecNanos + " ns per round trip, simple format " + simpleNanos, codecNanos < simpleNanos);
+    }
+
+    private static long time(@NonNull RoundTrip roundTrip) {
+        long start = System.nanoTime();
+        assertNotNull(roundTrip.run(SAMPLE, ITERATIONS));
+        return System.nanoTime() - start;
+    }
+
+    private abstract static class RoundTrip {
+
+        abstract byte[] encode(@NonNull SensorSample event);
+
+        abstract SensorSample decode(@NonNull MessageHeader header);
+
+        /**
+         * @return last decoded event
+         */
+        SensorSample run(@NonNull SensorSample event, int iterations) {
+            SensorSample decoded = null;
+            for (int i = 0; i < iterations; i++) {
+                MessageHeader header = MessageHeader.read("node", encode(event));
+                decoded = decode(header);
+            }
+            return decoded;
+        }
+    }
+}
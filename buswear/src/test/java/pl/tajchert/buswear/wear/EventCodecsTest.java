@@ -0,0 +1,238 @@
+package pl.tajchert.buswear.wear;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import pl.tajchert.buswear.EventBus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Format byte written by the sender decides how the receiver decodes the event, checked through a loopback pair
+ */
+public class EventCodecsTest {
+
+    private static final long TIMEOUT_MS = 2000;
+
+    private RecordingTransport phoneTransport;
+    private EventBus phone;
+    private EventBus watch;
+    private final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+
+    @BeforeClass
+    public static void registerCodecs() {
+        EventCodecs.register(SensorSample.class, new SensorSample.Codec());
+        EventCodecs.registerParcelCodec(ParcelSample.class, new ParcelSample.Codec());
+    }
+
+    @Before
+    public void setUp() {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        phoneTransport = new RecordingTransport(pair[0]);
+        phone = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), phoneTransport);
+        watch = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), pair[1]);
+        watch.register(this);
+    }
+
+    @After
+    public void tearDown() {
+        phone.release();
+        watch.release();
+    }
+
+    @Test
+    public void simpleEventsAreSentAsSimple() throws Exception {
+        assertEquals(7, sendAndReceive(7));
+        assertEquals(EventCodecs.FORMAT_SIMPLE, lastSentFormat());
+        assertEquals("text", sendAndReceive("text"));
+        assertEquals(EventCodecs.FORMAT_SIMPLE, lastSentFormat());
+    }
+
+    @Test
+    public void codecEventsAreDecodedWithTheCodec() throws Exception {
+        SensorSample sample = new SensorSample(1.5f, -2f, 9.81f, 1234567890123L);
+        assertEquals(sample, sendAndReceive(sample));
+        assertEquals(EventCodecs.FORMAT_CODEC, lastSentFormat());
+    }
+
+    @Test
+    public void parcelCodecEventsAreSentAsParcel() throws Exception {
+        ParcelSample sample = new ParcelSample(42);
+        assertEquals(sample, sendAndReceive(sample));
+        assertEquals(EventCodecs.FORMAT_PARCEL, lastSentFormat());
+    }
+
+    @Test
+    public void codecEventWithoutCodecOnReceiverIsNotPosted() throws Exception {
+        //As sent by a side having a codec this one does not have
+        byte[] message = MessageHeader.write(MessageHeader.KIND_EVENT, UncodedSample.class, EventCodecs.FORMAT_CODEC, new byte[]{1, 2, 3});
+        watch.syncEvent("loopback-1", message);
+        //Dropped by the decoder, not for lack of a subscriber
+        assertEquals(0, watch.getSkippedDecodeCount());
+        assertTrue(received.isEmpty());
+
+        //Following events still arrive
+        assertEquals(8, sendAndReceive(8));
+    }
+
+    @Subscribe
+    public void onEvent(Integer event) {
+        received.add(event);
+    }
+
+    @Subscribe
+    public void onEvent(String event) {
+        received.add(event);
+    }
+
+    @Subscribe
+    public void onEvent(SensorSample event) {
+        received.add(event);
+    }
+
+    @Subscribe
+    public void onEvent(ParcelSample event) {
+        received.add(event);
+    }
+
+    @Subscribe
+    public void onEvent(UncodedSample event) {
+        received.add(event);
+    }
+
+    @NonNull
+    private Object sendAndReceive(@NonNull Object event) throws Exception {
+        DeliveryReport report = phone.postRemoteWithAck(event, TIMEOUT_MS).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(report.toString(), report.isPostedToAll());
+        Object receivedEvent = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(receivedEvent);
+        return receivedEvent;
+    }
+
+    private byte lastSentFormat() {
+        //Interest advertisements go out as well
+        List<byte[]> sent = phoneTransport.sent;
+        for (int i = sent.size() - 1; i >= 0; i--) {
+            if (MessageHeader.peekKind(sent.get(i)) == MessageHeader.KIND_EVENT) {
+                MessageHeader header = MessageHeader.read(null, sent.get(i));
+                assertNotNull(header);
+                return header.format;
+            }
+        }
+        throw new AssertionError("No event sent");
+    }
+
+    public static class UncodedSample {
+    }
+
+    public static class ParcelSample implements Parcelable {
+
+        final int value;
+
+        ParcelSample(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ParcelSample && ((ParcelSample) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+
+        /**
+         * Stands in for a generated codec, Parcel does nothing on the JVM
+         */
+        static class Codec implements EventCodec<ParcelSample> {
+
+            @NonNull
+            @Override
+            public byte[] encode(@NonNull ParcelSample event) {
+                byte[] data = new byte[4];
+                MessageHeader.writeInt(data, 0, event.value);
+                return data;
+            }
+
+            @NonNull
+            @Override
+            public ParcelSample decode(@NonNull byte[] data) {
+                return new ParcelSample(MessageHeader.readInt(data, 0));
+            }
+        }
+    }
+
+    /**
+     * Keeps every message sent to all nodes
+     */
+    private static class RecordingTransport implements RemoteTransport {
+
+        final List<byte[]> sent = new CopyOnWriteArrayList<byte[]>();
+        private final RemoteTransport transport;
+
+        RecordingTransport(@NonNull RemoteTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void send(@NonNull String path, @NonNull byte[] data) {
+            sent.add(data);
+            transport.send(path, data);
+        }
+
+        @Override
+        public void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+            transport.sendToNode(nodeId, path, data);
+        }
+
+        @NonNull
+        @Override
+        public Collection<String> getConnectedNodeIds() {
+            return transport.getConnectedNodeIds();
+        }
+
+        @Override
+        public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+            transport.setOnMessageReceivedListener(listener);
+        }
+
+        @Override
+        public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+            transport.setOnNodesChangedListener(listener);
+        }
+
+        @Override
+        public void release() {
+            transport.release();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeOutboxTest {
+
+    private static final String NODE = "node";
+
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final BlockingQueue<String> completed = new LinkedBlockingQueue<String>();
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void blockedOfferDropsOldestOnceWaitRunsOut() throws Exception {
+        NodeOutbox outbox = new NodeOutbox(NODE, 1, NodeOutbox.OverflowPolicy.BLOCK, new NodeOutbox.Sender() {
+            @Override
+            public boolean send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        });
+
+        assertTrue(outbox.offer("/first", new byte[0], callback("first")));
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        assertTrue(outbox.offer("/second", new byte[0], callback("second")));
+
+        long start = System.nanoTime();
+        assertTrue(outbox.offer("/third", new byte[0], callback("third")));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(waitedMs >= NodeOutbox.MAX_BLOCK_MS);
+        assertEquals("second false", completed.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, outbox.getDroppedCount());
+
+        release.countDown();
+        assertEquals("first true", completed.poll(5, TimeUnit.SECONDS));
+        assertEquals("third true", completed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownOutboxSendsQueuedMessagesAndFailsNewOnes() throws Exception {
+        NodeOutbox outbox = new NodeOutbox(NODE, 4, NodeOutbox.OverflowPolicy.DROP_NEWEST, new NodeOutbox.Sender() {
+            @Override
+            public boolean send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        });
+
+        assertTrue(outbox.offer("/first", new byte[0], callback("first")));
+        assertTrue(outbox.offer("/second", new byte[0], callback("second")));
+        outbox.shutdown();
+        assertFalse(outbox.offer("/third", new byte[0], callback("third")));
+        assertEquals("third false", completed.poll(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertEquals("first true", completed.poll(5, TimeUnit.SECONDS));
+        assertEquals("second true", completed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @NonNull
+    private NodeOutbox.Callback callback(@NonNull final String name) {
+        return new NodeOutbox.Callback() {
+            @Override
+            public void onComplete(@NonNull String nodeId, boolean sent) {
+                completed.add(name + " " + sent);
+            }
+        };
+    }
+}
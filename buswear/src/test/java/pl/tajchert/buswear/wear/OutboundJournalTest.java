@@ -0,0 +1,188 @@
+package pl.tajchert.buswear.wear;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    private static final String PATH = WearBusTools.MESSAGE_PATH;
+    private static final List<String> NODE = Collections.singletonList("node");
+    private static final List<String> NODES = Arrays.asList("first", "second");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unsentMessagesAreReloaded() throws IOException {
+        File file = folder.newFile();
+        OutboundJournal journal = new OutboundJournal(file, 4096);
+        byte[][] messages = {message(1), message(2), message(3)};
+        for (byte[] message : messages) {
+            assertTrue(journal.append(PATH, message));
+        }
+
+        //As opened by the next process
+        List<OutboundJournal.Entry> reloaded = new OutboundJournal(file, 4096).takeUnsent(NODE);
+        assertEquals(3, reloaded.size());
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(PATH, reloaded.get(i).path);
+            assertArrayEquals(messages[i], reloaded.get(i).data);
+        }
+    }
+
+    @Test
+    public void sentMessagesAreNotReloaded() throws IOException {
+        File file = folder.newFile();
+        OutboundJournal journal = new OutboundJournal(file, 4096);
+        journal.append(PATH, message(1));
+        journal.append(PATH, message(2));
+        journal.append(PATH, message(3));
+
+        List<OutboundJournal.Entry> entries = journal.takeUnsent(NODE);
+        journal.onSent(entries.get(0), "node", true);
+        journal.onSent(entries.get(1), "node", false);
+        journal.onSent(entries.get(2), "node", true);
+        assertEquals(1, journal.getUnsentCount());
+
+        List<OutboundJournal.Entry> reloaded = new OutboundJournal(file, 4096).takeUnsent(NODE);
+        assertEquals(1, reloaded.size());
+        assertEquals(2, valueOf(reloaded.get(0)));
+    }
+
+    @Test
+    public void entriesBeingSentAreNotTakenAgain() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        journal.append(PATH, message(1));
+        OutboundJournal.Entry first = journal.takeUnsent(NODE).get(0);
+        journal.append(PATH, message(2));
+
+        List<OutboundJournal.Entry> entries = journal.takeUnsent(NODE);
+        assertEquals(1, entries.size());
+        assertEquals(2, valueOf(entries.get(0)));
+
+        //Failed ones come back
+        journal.onSent(first, "node", false);
+        assertEquals(1, valueOf(journal.takeUnsent(NODE).get(0)));
+    }
+
+    @Test
+    public void failedMessageIsSentAgainOnlyToNodeWhichDidNotReceiveIt() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        journal.append(PATH, message(1));
+
+        OutboundJournal.Entry entry = journal.takeUnsent(NODES).get(0);
+        assertEquals(NODES, entry.nodeIds);
+        journal.onSent(entry, "first", true);
+        journal.onSent(entry, "second", false);
+        assertEquals(1, journal.getUnsentCount());
+
+        entry = journal.takeUnsent(NODES).get(0);
+        assertEquals(Collections.singletonList("second"), entry.nodeIds);
+        journal.onSent(entry, "second", true);
+        assertEquals(0, journal.getUnsentCount());
+    }
+
+    @Test
+    public void messageWaitsForDisconnectedNode() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        journal.append(PATH, message(1));
+        OutboundJournal.Entry entry = journal.takeUnsent(NODES).get(0);
+        journal.onSent(entry, "first", true);
+        journal.onSent(entry, "second", false);
+
+        //Only the node which received it is connected, and a node connected later
+        assertTrue(journal.takeUnsent(Arrays.asList("first", "third")).isEmpty());
+        assertEquals(1, journal.getUnsentCount());
+
+        //Received once the node is back
+        entry = journal.takeUnsent(NODES).get(0);
+        journal.onSent(entry, "second", true);
+        assertEquals(0, journal.getUnsentCount());
+    }
+
+    @Test
+    public void messageBeingSentToNodeIsNotTakenForItAgain() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        journal.append(PATH, message(1));
+        OutboundJournal.Entry first = journal.takeUnsent(Collections.singletonList("first")).get(0);
+
+        assertTrue(journal.takeUnsent(Collections.singletonList("first")).isEmpty());
+        journal.onSent(first, "first", true);
+        assertEquals(0, journal.getUnsentCount());
+    }
+
+    @Test
+    public void compactionKeepsUnsentMessagesInOrder() throws IOException {
+        File file = folder.newFile();
+        //Room for about 18 messages, 40 are written so the journal has to be compacted
+        OutboundJournal journal = new OutboundJournal(file, 4096);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(journal.append(PATH, message(i)));
+            for (OutboundJournal.Entry entry : journal.takeUnsent(NODE)) {
+                journal.onSent(entry, "node", valueOf(entry) % 5 != 0);
+            }
+        }
+        assertEquals(8, journal.getUnsentCount());
+
+        List<OutboundJournal.Entry> reloaded = new OutboundJournal(file, 4096).takeUnsent(NODE);
+        assertEquals(8, reloaded.size());
+        for (int i = 0; i < reloaded.size(); i++) {
+            assertEquals(i * 5, valueOf(reloaded.get(i)));
+        }
+        assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+
+    @Test
+    public void keepLatestKeepsOnlyNewestUnsentMessage() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        journal.setRetention(Integer.class, OutboundJournal.Retention.KEEP_LATEST);
+        journal.append(PATH, message(1));
+        journal.append(PATH, message(2));
+        journal.append(PATH, message(3));
+
+        List<OutboundJournal.Entry> entries = journal.takeUnsent(NODE);
+        assertEquals(1, entries.size());
+        assertEquals(3, valueOf(entries.get(0)));
+    }
+
+    @Test
+    public void messagesAreNotKeptWithRetentionNone() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        journal.setDefaultRetention(OutboundJournal.Retention.NONE);
+        assertFalse(journal.append(PATH, message(1)));
+        assertEquals(0, journal.getUnsentCount());
+    }
+
+    @Test
+    public void messageTooBigForJournalIsNotKept() throws IOException {
+        OutboundJournal journal = new OutboundJournal(folder.newFile(), 4096);
+        byte[] big = MessageHeader.write(MessageHeader.KIND_EVENT, Integer.class, EventCodecs.FORMAT_SIMPLE, new byte[5000]);
+        assertFalse(journal.append(PATH, big));
+        assertTrue(journal.append(PATH, message(1)));
+    }
+
+    /**
+     * @return message of about 220 bytes carrying the value in its last byte
+     */
+    private static byte[] message(int value) {
+        byte[] payload = new byte[200];
+        payload[payload.length - 1] = (byte) value;
+        return MessageHeader.write(MessageHeader.KIND_EVENT, Integer.class, EventCodecs.FORMAT_SIMPLE, payload);
+    }
+
+    private static int valueOf(OutboundJournal.Entry entry) {
+        return entry.data[entry.data.length - 1];
+    }
+}
@@ -0,0 +1,112 @@
+package pl.tajchert.buswear.wear;
+
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import pl.tajchert.buswear.EventBus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Requests between two buses connected by a loopback pair
+ */
+public class RequestTrackerTest {
+
+    private LoopbackTransport[] pair;
+    private EventBus phone;
+    private EventBus watch;
+    private final CountDownLatch requestReceived = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        pair = LoopbackTransport.createPair();
+        phone = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), pair[0]);
+        watch = new EventBus(org.greenrobot.eventbus.EventBus.builder().build(), pair[1]);
+        watch.register(this);
+    }
+
+    @After
+    public void tearDown() {
+        phone.release();
+        watch.release();
+    }
+
+    @Subscribe
+    public void onEvent(String request) {
+        watch.reply(request, request.length());
+    }
+
+    @Subscribe
+    public void onEvent(Long request) {
+        //Never answered
+        requestReceived.countDown();
+    }
+
+    @Test
+    public void responseCompletesRequest() throws Exception {
+        RequestFuture<Integer> future = phone.request("four", Integer.class, 2000);
+        assertEquals(Integer.valueOf(4), future.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unansweredRequestTimesOut() throws Exception {
+        RequestFuture<Integer> future = phone.request(1L, Integer.class, 200);
+        assertFailsWith(TimeoutException.class, future);
+    }
+
+    @Test
+    public void requestFailsOnceNodeDisconnects() throws Exception {
+        RequestFuture<Integer> future = phone.request(1L, Integer.class, 60000);
+        assertTrue(requestReceived.await(2, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        pair[0].setConnected(false);
+        assertFailsWith(RemoteRequestException.class, future);
+        assertTrue("failed without waiting for the timeout", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void requestWithoutSubscriberFails() throws Exception {
+        RequestFuture<Integer> future = phone.request(1.5f, Integer.class, 60000);
+        assertFailsWith(RemoteRequestException.class, future);
+    }
+
+    @Test
+    public void responseOfWrongTypeFails() throws Exception {
+        RequestFuture<Long> future = phone.request("four", Long.class, 60000);
+        assertFailsWith(RemoteRequestException.class, future);
+    }
+
+    @Test
+    public void responseToRequestOfEarlierProcessIsIgnored() throws Exception {
+        RequestTracker tracker = new RequestTracker();
+        RequestFuture<Integer> future = new RequestFuture<Integer>(Integer.class, 60000);
+        tracker.track(7, 1, Collections.singletonList("node"), future);
+
+        //Same sequence number, answering a request the previous process sent
+        tracker.onResponse("node", 6, 1, "stale");
+        assertFalse(future.isDone());
+        tracker.onResponse("node", 7, 1, 4);
+        assertEquals(Integer.valueOf(4), future.get(0, TimeUnit.SECONDS));
+    }
+
+    private static void assertFailsWith(Class<? extends Exception> expected, RequestFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Request did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), expected.isInstance(e.getCause()));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Hot event type of the kind hand written codecs are meant for
+ */
+public class SensorSample {
+
+    public final float x;
+    public final float y;
+    public final float z;
+    public final long timestamp;
+
+    public SensorSample(float x, float y, float z, long timestamp) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SensorSample)) {
+            return false;
+        }
+        SensorSample other = (SensorSample) o;
+        return Float.compare(x, other.x) == 0 && Float.compare(y, other.y) == 0 && Float.compare(z, other.z) == 0
+                && timestamp == other.timestamp;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * Float.floatToIntBits(x) + Float.floatToIntBits(y)) + Float.floatToIntBits(z)) + (int) timestamp;
+    }
+
+    /**
+     * Writes the fields big-endian, 20 bytes
+     */
+    public static class Codec implements EventCodec<SensorSample> {
+
+        @NonNull
+        @Override
+        public byte[] encode(@NonNull SensorSample event) {
+            byte[] data = new byte[20];
+            MessageHeader.writeInt(data, 0, Float.floatToIntBits(event.x));
+            MessageHeader.writeInt(data, 4, Float.floatToIntBits(event.y));
+            MessageHeader.writeInt(data, 8, Float.floatToIntBits(event.z));
+            MessageHeader.writeInt(data, 12, (int) (event.timestamp >>> 32));
+            MessageHeader.writeInt(data, 16, (int) event.timestamp);
+            return data;
+        }
+
+        @NonNull
+        @Override
+        public SensorSample decode(@NonNull byte[] data) {
+            return new SensorSample(Float.intBitsToFloat(MessageHeader.readInt(data, 0)), Float.intBitsToFloat(MessageHeader.readInt(data, 4)),
+                    Float.intBitsToFloat(MessageHeader.readInt(data, 8)),
+                    (long) MessageHeader.readInt(data, 12) << 32 | (MessageHeader.readInt(data, 16) & 0xFFFFFFFFL));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package pl.tajchert.buswear.wear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TypeIdCheckingTransportTest {
+
+    private final RemoteInterest remoteInterest = new RemoteInterest();
+    private final RecordingTransport recording = new RecordingTransport();
+    private final TypeIdCheckingTransport transport = new TypeIdCheckingTransport(recording, remoteInterest);
+
+    @BeforeClass
+    public static void registerType() {
+        WearTypeRegistry.register(RegisteredSample.class);
+    }
+
+    @Test
+    public void classNameIsSentUntilNodeAdvertisedTypeId() {
+        byte[] message = message();
+        transport.send(WearBusTools.MESSAGE_PATH, message);
+        assertSentWithClassName(message, recording.sent.get(0));
+
+        //Advertisement carries every type id this process resolves
+        remoteInterest.onAdvertisementReceived("node", RemoteInterest.encode(RemoteInterest.FULL, 0, Collections.<Class<?>>emptyList()));
+        transport.send(WearBusTools.MESSAGE_PATH, message);
+        assertArrayEquals(message, recording.sent.get(1));
+    }
+
+    @Test
+    public void nodeWithoutTypeIdGetsClassName() throws IOException {
+        remoteInterest.onAdvertisementReceived("node", advertisementWithoutTypeIds());
+        byte[] message = message();
+        transport.sendToNode("node", WearBusTools.MESSAGE_PATH, message);
+        assertSentWithClassName(message, recording.sent.get(0));
+    }
+
+    @Test
+    public void messagesWithoutTypeIdAreSentAsTheyAre() {
+        byte[] message = MessageHeader.write(MessageHeader.KIND_REMOVE_ALL_STICKY, null, EventCodecs.FORMAT_NONE, new byte[0]);
+        transport.send(WearBusTools.MESSAGE_PATH, message);
+        assertArrayEquals(message, recording.sent.get(0));
+    }
+
+    private static byte[] message() {
+        byte[] message = MessageHeader.write(MessageHeader.KIND_EVENT, RegisteredSample.class, EventCodecs.FORMAT_CODEC, new byte[]{1, 2, 3});
+        assertEquals(WearTypeRegistry.getTypeId(RegisteredSample.class), MessageHeader.getTypeId(message));
+        return message;
+    }
+
+    private static void assertSentWithClassName(@NonNull byte[] message, @NonNull byte[] sent) {
+        assertEquals(0, MessageHeader.getTypeId(sent));
+        MessageHeader header = MessageHeader.read("node", sent);
+        assertNotNull(header);
+        assertEquals(RegisteredSample.class.getName(), header.className);
+        assertEquals(MessageHeader.getSequence(message), header.sequence);
+        assertEquals(MessageHeader.getEpoch(message), header.epoch);
+        assertArrayEquals(new byte[]{1, 2, 3}, header.getPayload());
+    }
+
+    /**
+     * As sent by a bus which does not know any type ids
+     */
+    private static byte[] advertisementWithoutTypeIds() throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteStream);
+        out.writeByte(RemoteInterest.FULL);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        return byteStream.toByteArray();
+    }
+
+    public static class RegisteredSample {
+    }
+
+    private static class RecordingTransport implements RemoteTransport {
+
+        final List<byte[]> sent = new CopyOnWriteArrayList<byte[]>();
+
+        @Override
+        public void send(@NonNull String path, @NonNull byte[] data) {
+            sent.add(data);
+        }
+
+        @Override
+        public void sendToNode(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data) {
+            sent.add(data);
+        }
+
+        @NonNull
+        @Override
+        public Collection<String> getConnectedNodeIds() {
+            return Collections.singletonList("node");
+        }
+
+        @Override
+        public void setOnMessageReceivedListener(@Nullable OnMessageReceivedListener listener) {
+        }
+
+        @Override
+        public void setOnNodesChangedListener(@Nullable OnNodesChangedListener listener) {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
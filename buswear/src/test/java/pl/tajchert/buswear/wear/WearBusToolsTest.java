@@ -0,0 +1,142 @@
+package pl.tajchert.buswear.wear;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class WearBusToolsTest {
+
+    private static final Object[] PRIMITIVES = {
+            Integer.MIN_VALUE, -1, 0, 123456, Integer.MAX_VALUE,
+            Long.MIN_VALUE, -1L, 1L << 40, Long.MAX_VALUE,
+            -0f, 1.5f, Float.NaN, Float.NEGATIVE_INFINITY, Float.MAX_VALUE,
+            Math.PI, -Double.MAX_VALUE, Double.NaN, Double.MIN_VALUE,
+            Short.MIN_VALUE, (short) -2, Short.MAX_VALUE
+    };
+
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 10000;
+
+    //Keeps measured allocations reachable, so they cannot be optimized away
+    private Object sink;
+
+    @Test
+    public void primitivesRoundTrip() {
+        for (Object value : PRIMITIVES) {
+            int size = WearBusTools.getPrimitiveSize(value);
+            byte[] message = MessageHeader.allocate(MessageHeader.KIND_EVENT, value.getClass(), EventCodecs.FORMAT_SIMPLE, size);
+            WearBusTools.writePrimitive(value, message, message.length - size);
+
+            MessageHeader header = MessageHeader.read("node", message);
+            assertNotNull(header);
+            assertEquals(MessageHeader.KIND_EVENT, header.kind);
+            assertEquals(EventCodecs.FORMAT_SIMPLE, header.format);
+            assertEquals(value.getClass(), header.type);
+            assertEquals(size, header.getPayloadLength());
+            Object decoded = WearBusTools.getSendSimpleObject(header.getMessage(), header.getPayloadOffset(), header.getPayloadLength(), header.className);
+            assertEquals(value, decoded);
+        }
+    }
+
+    @Test
+    public void primitivesAreWrittenAsByteBufferWould() {
+        for (Object value : PRIMITIVES) {
+            int size = WearBusTools.getPrimitiveSize(value);
+            byte[] written = new byte[size + 3];
+            WearBusTools.writePrimitive(value, written, 3);
+            assertArrayEquals(String.valueOf(value), toByteBuffer(value), Arrays.copyOfRange(written, 3, written.length));
+        }
+    }
+
+    @Test
+    public void stringRoundTrip() {
+        //Two and three byte UTF-8 characters
+        String value = "za\u017C\u00F3\u0142\u0107 \u2713";
+        byte[] message = SendByteArrayToNode.encode(value, MessageHeader.KIND_EVENT, 0);
+        assertNotNull(message);
+
+        MessageHeader header = MessageHeader.read("node", message);
+        assertNotNull(header);
+        assertEquals(String.class, header.type);
+        assertEquals(value, WearBusTools.getSendSimpleObject(header.getMessage(), header.getPayloadOffset(), header.getPayloadLength(), header.className));
+    }
+
+    @Test
+    public void encodingPrimitiveAllocatesOnlyTheMessage() {
+        for (final Object value : new Object[]{123456, 1L << 40, 1.5f, Math.PI, (short) -2}) {
+            final int messageLength = SendByteArrayToNode.encode(value, MessageHeader.KIND_EVENT, 0).length;
+            long encoding = measureAllocatedBytes(new Runnable() {
+                @Override
+                public void run() {
+                    sink = SendByteArrayToNode.encode(value, MessageHeader.KIND_EVENT, 0);
+                }
+            });
+            long arraysOnly = measureAllocatedBytes(new Runnable() {
+                @Override
+                public void run() {
+                    sink = new byte[messageLength];
+                }
+            });
+            assertTrue(value.getClass().getSimpleName() + " encoding allocated " + encoding + " bytes, the messages alone take " + arraysOnly,
+                    encoding <= arraysOnly + ITERATIONS);
+        }
+    }
+
+    @Test
+    public void decodingPrimitiveAllocatesOnlyTheEvent() {
+        for (Object value : new Object[]{123456, 1L << 40, 1.5f, Math.PI, (short) -2}) {
+            byte[] message = SendByteArrayToNode.encode(value, MessageHeader.KIND_EVENT, 0);
+            final MessageHeader header = MessageHeader.read("node", message);
+            assertNotNull(header);
+            long decoding = measureAllocatedBytes(new Runnable() {
+                @Override
+                public void run() {
+                    sink = WearBusTools.getSendSimpleObject(header.getMessage(), header.getPayloadOffset(), header.getPayloadLength(), header.className);
+                }
+            });
+            //A boxed Long or Double, even without compressed oops
+            assertTrue(value.getClass().getSimpleName() + " decoding allocated " + decoding + " bytes", decoding <= 24L * ITERATIONS);
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread running the work {@link #ITERATIONS} times, after a warm-up
+     */
+    private static long measureAllocatedBytes(Runnable work) {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        for (int i = 0; i < WARM_UP; i++) {
+            work.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            work.run();
+        }
+        return allocationBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static byte[] toByteBuffer(Object value) {
+        if (value instanceof Integer) {
+            return ByteBuffer.allocate(4).putInt((Integer) value).array();
+        } else if (value instanceof Long) {
+            return ByteBuffer.allocate(8).putLong((Long) value).array();
+        } else if (value instanceof Float) {
+            return ByteBuffer.allocate(4).putFloat((Float) value).array();
+        } else if (value instanceof Double) {
+            return ByteBuffer.allocate(8).putDouble((Double) value).array();
+        }
+        return ByteBuffer.allocate(2).putShort((Short) value).array();
+    }
+}
@@ -3,7 +3,9 @@ package pl.tajchert.buswear.sample;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import pl.tajchert.buswear.WearEvent;
 
+@WearEvent
 public class CustomObject implements Parcelable {
 
     private String name;